@@ -6,12 +6,23 @@
 
 package com.actuate.birt.script.ext.rserve;
 
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
 public class Activator implements BundleActivator {
 
+	private static Logger logger = Logger.getLogger( Activator.class.getName() );
+
 	private static BundleContext context;
+	private RMetricsCollector metrics;
 
 	static BundleContext getContext() {
 		return context;
@@ -23,6 +34,16 @@ public class Activator implements BundleActivator {
 	 */
 	public void start(BundleContext bundleContext) throws Exception {
 		Activator.context = bundleContext;
+
+		// Collect metrics and publish them through JMX
+		metrics = new RMetricsCollector();
+		RMetrics.addListener( metrics );
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean( metrics, new ObjectName( RMetricsCollector.OBJECT_NAME ) );
+		} catch ( JMException e ) {
+			logger.log( Level.WARNING, "Failed to register R metrics MBean", e );
+		}
 	}
 
 	/*
@@ -31,6 +52,22 @@ public class Activator implements BundleActivator {
 	 */
 	public void stop(BundleContext bundleContext) throws Exception {
 		Activator.context = null;
+		RserveConnectionFactory.shutdownPool();
+		RColumnConverter.shutdown();
+		RScriptEngine.shutdownExecutor();
+
+		if ( metrics != null ) {
+			RMetrics.removeListener( metrics );
+			metrics = null;
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName( RMetricsCollector.OBJECT_NAME );
+				if ( server.isRegistered( name ) )
+					server.unregisterMBean( name );
+			} catch ( JMException e ) {
+				logger.log( Level.WARNING, "Failed to unregister R metrics MBean", e );
+			}
+		}
 	}
 
 }
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in nanoseconds. Values are counted in log-linear buckets (16 buckets per
+ * power of 2, in the manner of HdrHistogram), which bounds the relative error of reported percentiles to about
+ * 3% while using a fixed, small amount of memory. Recording a value does not allocate.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 32;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	/** Largest value that can be recorded (about 73 minutes); larger values are counted as this value */
+	private static final long MAX_VALUE = ( 1L << 42 ) - 1;
+	private static final int BUCKET_COUNT = indexOf( MAX_VALUE ) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void record( long nanos ) {
+		long v = nanos < 0 ? 0 : Math.min( nanos, MAX_VALUE );
+		counts.incrementAndGet( indexOf( v ) );
+		count.incrementAndGet();
+		sum.addAndGet( v );
+		long m;
+		while ( v > ( m = max.get() ) && !max.compareAndSet( m, v ) ) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the mean duration in nanoseconds
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Gets the largest recorded duration in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the duration (in nanoseconds) below which the specified percentage of recorded durations fall
+	 * @param percentile Percentage between 0 and 100
+	 */
+	public long getPercentile( double percentile ) {
+		long n = count.get();
+		if ( n == 0 )
+			return 0;
+		long rank = Math.max( 1, (long) Math.ceil( percentile / 100 * n ) );
+		long seen = 0;
+		for ( int i = 0; i < BUCKET_COUNT; i++ ) {
+			seen += counts.get( i );
+			if ( seen >= rank )
+				return Math.min( midValueOf( i ), max.get() );
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for ( int i = 0; i < BUCKET_COUNT; i++ )
+			counts.set( i, 0 );
+		count.set( 0 );
+		sum.set( 0 );
+		max.set( 0 );
+	}
+
+	/**
+	 * Takes a snapshot of the main statistics of this histogram, in milliseconds
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot( getCount(), getMean() / 1e6, getPercentile( 50 ) / 1e6,
+				getPercentile( 90 ) / 1e6, getPercentile( 99 ) / 1e6, getMax() / 1e6 );
+	}
+
+	private static int indexOf( long v ) {
+		if ( v < SUB_BUCKETS )
+			return (int) v;
+		int highestBit = 63 - Long.numberOfLeadingZeros( v );
+		int shift = highestBit - 4;
+		return SUB_BUCKETS + ( shift - 1 ) * HALF_SUB_BUCKETS + (int) ( ( v >>> shift ) - HALF_SUB_BUCKETS );
+	}
+
+	private static long midValueOf( int index ) {
+		if ( index < SUB_BUCKETS )
+			return index;
+		int k = index - SUB_BUCKETS;
+		int shift = k / HALF_SUB_BUCKETS + 1;
+		long low = (long) ( k % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS ) << shift;
+		return low + ( 1L << ( shift - 1 ) );
+	}
+
+	/**
+	 * Summary statistics of a histogram. Durations are in milliseconds.
+	 */
+	public static class Snapshot {
+		private final long count;
+		private final double mean;
+		private final double p50;
+		private final double p90;
+		private final double p99;
+		private final double max;
+
+		public Snapshot( long count, double mean, double p50, double p90, double p99, double max ) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP90() {
+			return p90;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+					count, mean, p50, p90, p99, max );
+		}
+	}
+}
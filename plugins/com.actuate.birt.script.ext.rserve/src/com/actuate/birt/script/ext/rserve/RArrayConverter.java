@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPFactor;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+
+/**
+ * Utility class to convert 1-dimensional Java arrays to R vectors. Conversion is specialized by array
+ * component type, so that values are copied straight into the primitive payload of the R vector without
+ * reflection or boxing:
+ *    - int[], Integer[] -> integer vector
+ *    - double[], long[], float[], short[], and arrays of other Number types -> double vector
+ *    - boolean[], Boolean[] -> logical vector
+ *    - byte[] -> raw vector
+ *    - Date[] (including java.sql.Date[] and Timestamp[]) -> POSIXct vector
+ *    - anything else -> character vector (using toString())
+ * Null elements are converted to NA.
+ * An Object[] is converted according to the types of its elements, which are determined in the same pass
+ * that converts them.
+ */
+public class RArrayConverter {
+
+	public static REXP toREXP( Object array ) {
+		// Primitive arrays
+		if ( array instanceof int[] ) {
+			return new REXPInteger( (int[]) array );
+		} else if ( array instanceof double[] ) {
+			return new REXPDouble( (double[]) array );
+		} else if ( array instanceof String[] ) {
+			return new REXPString( (String[]) array );
+		} else if ( array instanceof long[] ) {
+			long[] src = (long[]) array;
+			double[] ret = new double[src.length];
+			for ( int i = 0; i < src.length; i++ )
+				ret[i] = src[i];
+			return new REXPDouble( ret );
+		} else if ( array instanceof float[] ) {
+			float[] src = (float[]) array;
+			double[] ret = new double[src.length];
+			for ( int i = 0; i < src.length; i++ )
+				ret[i] = src[i];
+			return new REXPDouble( ret );
+		} else if ( array instanceof short[] ) {
+			short[] src = (short[]) array;
+			double[] ret = new double[src.length];
+			for ( int i = 0; i < src.length; i++ )
+				ret[i] = src[i];
+			return new REXPDouble( ret );
+		} else if ( array instanceof byte[] ) {
+			return new REXPRaw( (byte[]) array );
+		} else if ( array instanceof boolean[] ) {
+			return new REXPLogical( (boolean[]) array );
+		} else if ( array instanceof char[] ) {
+			char[] src = (char[]) array;
+			String[] ret = new String[src.length];
+			for ( int i = 0; i < src.length; i++ )
+				ret[i] = String.valueOf( src[i] );
+			return new REXPString( ret );
+		}
+
+		Object[] values = (Object[]) array;
+		if ( values.length == 0 )
+			return new REXPNull();
+
+		// Typed object arrays
+		if ( values instanceof Integer[] ) {
+			return new REXPInteger( toInts( (Integer[]) values ) );
+		} else if ( values instanceof Number[] ) {
+			// Double[], Long[], Float[], BigDecimal[] etc. are all passed as double
+			return new REXPDouble( toDoubles( values, null, 0, 1, values.length ) );
+		} else if ( values instanceof Boolean[] ) {
+			return new REXPLogical( toLogicals( values ) );
+		} else if ( values instanceof Date[] ) {
+			return toPOSIXct( toSeconds( values ) );
+		} else if ( values.getClass().getComponentType() != Object.class ) {
+			// Other non-numeric types are passed as strings
+			return new REXPString( toStrings( values ) );
+		}
+
+		return fromObjects( values );
+	}
+
+	/**
+	 * Converts an Object[] in a single pass. Values are written to an int buffer while they are all integers;
+	 * the buffer is widened to double when the first non-integer number is seen, and the array is converted
+	 * to strings if a non-number is seen. An array of Booleans, or of Dates, (and nulls) is converted to a 
+	 * logical, or POSIXct, vector.
+	 */
+	private static REXP fromObjects( Object[] values ) {
+		int len = values.length;
+		int[] ints = null;
+		double[] doubles = null;
+		byte[] logicals = null;
+		double[] times = null;
+
+		for ( int i = 0; i < len; i++ ) {
+			Object v = values[i];
+			if ( v == null ) {
+				if ( doubles != null )
+					doubles[i] = REXPDouble.NA;
+				else if ( logicals != null )
+					logicals[i] = REXPLogical.NA;
+				else if ( times != null )
+					times[i] = REXPDouble.NA;
+				else {
+					if ( ints == null )
+						ints = new int[len];
+					ints[i] = REXPInteger.NA;
+				}
+			} else if ( times != null ) {
+				if ( !( v instanceof Date ) )
+					return new REXPString( toStrings( values ) );
+				times[i] = ( (Date) v ).getTime() / 1000.0;
+			} else if ( logicals != null ) {
+				if ( !( v instanceof Boolean ) )
+					return new REXPString( toStrings( values ) );
+				logicals[i] = (Boolean) v ? REXPLogical.TRUE : REXPLogical.FALSE;
+			} else if ( doubles == null && v instanceof Integer ) {
+				if ( ints == null )
+					ints = new int[len];
+				ints[i] = (Integer) v;
+			} else if ( v instanceof Number ) {
+				if ( doubles == null ) {
+					// Widen integers seen so far
+					doubles = new double[len];
+					for ( int j = 0; j < i; j++ )
+						doubles[j] = RVectorConverter.toDouble( ints[j] );
+					ints = null;
+				}
+				doubles[i] = ( (Number) v ).doubleValue();
+			} else if ( v instanceof Boolean && doubles == null && isAllNA( ints, i ) ) {
+				// Only NA values seen so far; treat as logical vector
+				logicals = new byte[len];
+				for ( int j = 0; j < i; j++ )
+					logicals[j] = REXPLogical.NA;
+				ints = null;
+				logicals[i] = (Boolean) v ? REXPLogical.TRUE : REXPLogical.FALSE;
+			} else if ( v instanceof Date && doubles == null && isAllNA( ints, i ) ) {
+				// Only NA values seen so far; treat as date-time vector
+				times = new double[len];
+				for ( int j = 0; j < i; j++ )
+					times[j] = REXPDouble.NA;
+				ints = null;
+				times[i] = ( (Date) v ).getTime() / 1000.0;
+			} else {
+				return new REXPString( toStrings( values ) );
+			}
+		}
+
+		if ( doubles != null )
+			return new REXPDouble( doubles );
+		if ( logicals != null )
+			return new REXPLogical( logicals );
+		if ( times != null )
+			return toPOSIXct( times );
+		if ( isAllNA( ints, len ) )
+			// No type information; all values are null
+			return new REXPString( new String[len] );
+		return new REXPInteger( ints );
+	}
+
+	private static boolean isAllNA( int[] ints, int len ) {
+		if ( ints == null )
+			return true;
+		for ( int j = 0; j < len; j++ ) {
+			if ( ints[j] != REXPInteger.NA )
+				return false;
+		}
+		return true;
+	}
+
+	private static int[] toInts( Integer[] values ) {
+		int[] ret = new int[values.length];
+		for ( int i = 0; i < values.length; i++ ) {
+			Integer v = values[i];
+			// Convert null to NA
+			ret[i] = v == null ? REXPInteger.NA : v;
+		}
+		return ret;
+	}
+
+	private static byte[] toLogicals( Object[] values ) {
+		byte[] ret = new byte[values.length];
+		for ( int i = 0; i < values.length; i++ ) {
+			Boolean v = (Boolean) values[i];
+			ret[i] = v == null ? REXPLogical.NA : ( v ? REXPLogical.TRUE : REXPLogical.FALSE );
+		}
+		return ret;
+	}
+
+	/**
+	 * Converts dates to seconds since the epoch; null values are converted to NA
+	 */
+	static double[] toSeconds( Object[] values ) {
+		double[] ret = new double[values.length];
+		for ( int i = 0; i < values.length; i++ ) {
+			Date v = (Date) values[i];
+			ret[i] = v == null ? REXPDouble.NA : v.getTime() / 1000.0;
+		}
+		return ret;
+	}
+
+	/**
+	 * Creates a POSIXct vector, i.e. a double vector of seconds since the epoch with a date-time class. The 
+	 * vector has no time zone attribute, so R shows it in the time zone of the R session.
+	 */
+	static REXP toPOSIXct( double[] seconds ) {
+		return new REXPDouble( seconds, new REXPList( new REXPString( new String[] { "POSIXct", "POSIXt" } ), "class" ) );
+	}
+
+	private static String[] toStrings( Object[] values ) {
+		String[] ret = new String[values.length];
+		for ( int i = 0; i < values.length; i++ ) {
+			Object v = values[i];
+			ret[i] = v == null ? null : v.toString();
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies numeric values of a 1-dimensional array to a double buffer; null values are converted to NA
+	 * @param array Source array; a primitive numeric array, or an array of Number
+	 * @param dest Destination buffer; if null, a new array is allocated
+	 * @param stride Distance between two consecutive destination elements (e.g. number of rows of a
+	 *        column-major matrix); 0 or 1 for contiguous copy
+	 * @return The destination buffer
+	 */
+	static double[] toDoubles( Object array, double[] dest, int offset, int stride, int len ) {
+		if ( dest == null ) {
+			dest = new double[len];
+			offset = 0;
+			stride = 1;
+		}
+		if ( stride <= 1 ) {
+			stride = 1;
+		}
+
+		if ( array instanceof double[] ) {
+			double[] src = (double[]) array;
+			if ( stride == 1 ) {
+				System.arraycopy( src, 0, dest, offset, len );
+			} else {
+				for ( int i = 0; i < len; i++ )
+					dest[offset + i * stride] = src[i];
+			}
+		} else if ( array instanceof int[] ) {
+			int[] src = (int[]) array;
+			for ( int i = 0; i < len; i++ )
+				dest[offset + i * stride] = src[i];
+		} else if ( array instanceof long[] ) {
+			long[] src = (long[]) array;
+			for ( int i = 0; i < len; i++ )
+				dest[offset + i * stride] = src[i];
+		} else if ( array instanceof float[] ) {
+			float[] src = (float[]) array;
+			for ( int i = 0; i < len; i++ )
+				dest[offset + i * stride] = src[i];
+		} else if ( array instanceof Object[] ) {
+			Object[] src = (Object[]) array;
+			for ( int i = 0; i < len; i++ )
+				dest[offset + i * stride] = toDouble( src[i] );
+		} else if ( array instanceof short[] ) {
+			short[] src = (short[]) array;
+			for ( int i = 0; i < len; i++ )
+				dest[offset + i * stride] = src[i];
+		} else {
+			// Other primitive arrays
+			for ( int i = 0; i < len; i++ )
+				dest[offset + i * stride] = toDouble( Array.get( array, i ) );
+		}
+		return dest;
+	}
+
+	/**
+	 * Converts a value to double; null is converted to NA, and non-numbers are parsed
+	 */
+	static double toDouble( Object value ) {
+		if ( value == null )
+			return REXPDouble.NA;
+		if ( value instanceof Number )
+			return ( (Number) value ).doubleValue();
+		return Double.parseDouble( value.toString() );
+	}
+
+	/**
+	 * Dictionary-encodes a string vector as an R factor, if it is repetitive enough for the encoding to be
+	 * smaller: there must be at most one distinct value per two elements. Null values are converted to NA.
+	 * @return The factor, or null if values are not repetitive enough
+	 */
+	static REXP toFactor( String[] values ) {
+		List<String> levels = new ArrayList<String>();
+		int[] codes = encode( values, values.length / 2, levels );
+		return codes == null ? null : new REXPFactor( codes, levels.toArray( new String[levels.size()] ) );
+	}
+
+	/**
+	 * Dictionary-encodes strings as a factor column, so that each distinct string is held once. Null values
+	 * are converted to NA.
+	 */
+	static RFactorColumn toFactorColumn( String name, String[] values ) {
+		List<String> levels = new ArrayList<String>();
+		int[] codes = encode( values, Integer.MAX_VALUE, levels );
+		return new RFactorColumn( name, codes, levels.toArray( new String[levels.size()] ) );
+	}
+
+	/**
+	 * Computes the 1-based factor codes of strings; levels are collected in order of first appearance
+	 * @return The codes, or null if there are more than maxLevels distinct values
+	 */
+	private static int[] encode( String[] values, int maxLevels, List<String> levels ) {
+		HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+		int[] codes = new int[values.length];
+		for ( int i = 0; i < values.length; i++ ) {
+			String v = values[i];
+			if ( v == null ) {
+				codes[i] = REXPInteger.NA;
+				continue;
+			}
+			Integer code = dictionary.get( v );
+			if ( code == null ) {
+				if ( levels.size() == maxLevels )
+					return null;
+				levels.add( v );
+				code = levels.size();
+				dictionary.put( v, code );
+			}
+			codes[i] = code;
+		}
+		return codes;
+	}
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+import com.actuate.birt.script.ext.rserve.RserveConnectionFactory.RConnectionWrapper;
+
+/**
+ * A data frame result that is kept on the Rserve side and transferred in fixed-size row chunks.
+ * Only one chunk is held in the JVM at a time. Call close() to remove the result from the R workspace.
+ * Chunks can't be read once the connection is closed (or its wrapper is closed, returning it to its pool).
+ */
+public class RChunkedResult implements Iterator<RDataFrame>, AutoCloseable {
+	private final RConnection rconn;
+	private final RConnectionWrapper wrapper;
+	private final String varName;
+	private final int rowCount;
+	private final int chunkSize;
+	private final long timeout;
+	private int nextRow;
+	private boolean closed;
+
+	/**
+	 * @param rconn Connection that holds the result
+	 * @param wrapper Wrapper that holds rconn, if the connection was obtained from RserveConnectionFactory
+	 * @param varName Name of the R variable holding the result data frame
+	 * @param rowCount Number of rows of the result
+	 * @param chunkSize Maximum number of rows to transfer at a time
+	 * @param timeout Time (ms) the transfer of a chunk may take; 0 for no timeout
+	 */
+	RChunkedResult( RConnection rconn, RConnectionWrapper wrapper, String varName, int rowCount, int chunkSize,
+			long timeout ) {
+		if ( chunkSize <= 0 )
+			throw new IllegalArgumentException( "chunkSize" );
+		this.rconn = rconn;
+		this.wrapper = wrapper;
+		this.varName = varName;
+		this.rowCount = rowCount;
+		this.chunkSize = chunkSize;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Gets the total number of rows of the result
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !closed && nextRow < rowCount;
+	}
+
+	/**
+	 * Transfers the next chunk of rows
+	 * @throws IllegalStateException if the connection has been closed
+	 */
+	@Override
+	public RDataFrame next() {
+		if ( !hasNext() )
+			throw new NoSuchElementException();
+		if ( !isConnectionHeld() )
+			throw new IllegalStateException( "R connection of the result has been closed" );
+
+		int from = nextRow + 1;
+		int to = Math.min( nextRow + chunkSize, rowCount );
+		try {
+			RDataFrame chunk = RDataFrame.fromREXP(
+					request( varName + "[" + from + ":" + to + ", , drop = FALSE]", false ) );
+			nextRow = to;
+			return chunk;
+		} catch ( RserveException | REXPMismatchException e ) {
+			throw new RuntimeException( e );
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Removes the result from the R workspace. If the connection has already been closed, there is nothing
+	 * to remove.
+	 */
+	@Override
+	public void close() throws RserveException {
+		if ( !closed ) {
+			closed = true;
+			if ( isConnectionHeld() )
+				request( "rm(" + varName + ")", true );
+		}
+	}
+
+	/**
+	 * Whether the connection is still open, and held by the caller that evaluated the result
+	 */
+	private boolean isConnectionHeld() {
+		return wrapper == null ? rconn.isConnected() : wrapper.getRConnection() == rconn;
+	}
+
+	private REXP request( String script, boolean isVoid ) throws RserveException {
+		return RScriptEngine.request( rconn, script, isVoid, wrapper == null ? null : wrapper.getPooledConnection(),
+				timeout );
+	}
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+
+/**
+ * A typed column of an R data frame. Values are kept in a primitive (or String) array, and NA values
+ * are tracked in a bitmap, so that no per-value object needs to be created to read the column.
+ */
+public abstract class RColumn {
+
+	/** R storage type of a column */
+	public enum Type {
+		INTEGER, DOUBLE, LOGICAL, STRING, FACTOR
+	}
+
+	private final String name;
+	private final Type type;
+	private final int length;
+	
+	/** NA bitmap; bit i is set if value i is NA. Null if the column has no NA values */
+	protected long[] naMask;
+
+	protected RColumn( String name, Type type, int length ) {
+		this.name = name;
+		this.type = type;
+		this.length = length;
+	}
+
+	/**
+	 * Creates a column from an R vector
+	 */
+	public static RColumn fromREXP( String name, REXP rexp ) throws REXPMismatchException {
+		if ( rexp.isFactor() ) {
+			REXP levels = rexp.getAttribute( "levels" );
+			return new RFactorColumn( name, rexp.asIntegers(),
+					levels == null ? new String[0] : levels.asStrings() );
+		} else if ( rexp.isLogical() ) {
+			return new RIntColumn( name, Type.LOGICAL, rexp.asIntegers() );
+		} else if ( rexp.isInteger() ) {
+			return new RIntColumn( name, Type.INTEGER, rexp.asIntegers() );
+		} else if ( rexp.isNumeric() ) {
+			return new RDoubleColumn( name, rexp.asDoubles() );
+		} else if ( rexp.isString() ) {
+			return new RStringColumn( name, rexp.asStrings() );
+		}
+		throw new REXPMismatchException( rexp, "unsupported column type" );
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the number of values in this column
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Checks whether value at specified index is NA
+	 */
+	public boolean isNA( int index ) {
+		return naMask != null && ( naMask[index >>> 6] & ( 1L << index ) ) != 0;
+	}
+
+	/**
+	 * Gets the NA bitmap of this column. Bit (index % 64) of word (index / 64) is set if the value at 
+	 * index is NA. Returns null if the column contains no NA value.
+	 */
+	public long[] getNAMask() {
+		return naMask;
+	}
+
+	/**
+	 * Gets value at specified index as an object; NA is returned as null. This method boxes numeric values, and
+	 * is intended for occasional access only.
+	 */
+	public abstract Object getObject( int index );
+
+	/**
+	 * Marks the value at specified index as NA
+	 */
+	protected void setNA( int index ) {
+		if ( naMask == null )
+			naMask = new long[( length + 63 ) >>> 6];
+		naMask[index >>> 6] |= 1L << index;
+	}
+}
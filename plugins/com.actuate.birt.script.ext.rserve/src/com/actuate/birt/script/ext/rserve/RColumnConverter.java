@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.RFactor;
+import org.rosuda.REngine.RList;
+
+/**
+ * Converts the columns of a data frame to the Java arrays (or RFactorColumn) of the Map result type, optionally
+ * on several cores. In parallel mode, work is split by column, and a long factor column is further split into
+ * row ranges. Only columns that must be decoded count towards the parallel threshold: factor columns decoded to
+ * String[], and character columns dictionary-encoded to RFactorColumn. Numeric, logical and other character
+ * columns are handed over as received and cost nothing to convert. The output of both modes is identical.
+ */
+final class RColumnConverter {
+	/** Default number of values to decode above which conversion is parallel */
+	static final long DEFAULT_PARALLEL_THRESHOLD = 1 << 20;
+	/** Smallest amount of work (values to decode) given to a fork-join task */
+	private static final int MIN_TASK_SIZE = 1 << 15;
+
+	private static ForkJoinPool pool;
+
+	private RColumnConverter() {
+	}
+
+	/**
+	 * Converts all columns of a data frame
+	 * @param names Column names, as they will appear in the result
+	 * @param factors See RScriptEngine.ATTR_RESULT_FACTORS
+	 * @param parallelThreshold Number of values to decode at or above which the conversion is split across
+	 *        cores; 0 to always convert sequentially
+	 * @return Converted columns, in the order of the data frame
+	 */
+	static Object[] convert( String[] names, RList columns, boolean factors, long parallelThreshold )
+			throws REXPMismatchException {
+		int nCols = columns.size();
+		Object[] values = new Object[nCols];
+		if ( parallelThreshold > 0 ) {
+			long[] costs = new long[nCols + 1];
+			for ( int col = 0; col < nCols; col++ )
+				costs[col + 1] = costs[col] + costOf( columns.at( col ), factors );
+			if ( costs[nCols] >= parallelThreshold && Runtime.getRuntime().availableProcessors() > 1 ) {
+				try {
+					getPool().invoke( new ColumnsTask( names, columns, factors, costs, values, 0, nCols ) );
+				} catch ( ConversionException e ) {
+					// The pool may rethrow a copy of the task's exception; find the original error
+					Throwable cause = e;
+					while ( !( cause instanceof REXPMismatchException ) )
+						cause = cause.getCause();
+					throw (REXPMismatchException) cause;
+				}
+				return values;
+			}
+		}
+		for ( int col = 0; col < nCols; col++ )
+			values[col] = convertColumn( names[col], columns.at( col ), factors, false );
+		return values;
+	}
+
+	/**
+	 * Converts one column, sequentially
+	 * @param factors See RScriptEngine.ATTR_RESULT_FACTORS
+	 */
+	static Object convert( String name, REXP val, boolean factors ) throws REXPMismatchException {
+		return convertColumn( name, val, factors, false );
+	}
+
+	/**
+	 * Whether a data frame with the specified row.names attribute has a row names column in the Map result 
+	 * type; automatic row names of an empty data frame are left out
+	 */
+	static boolean hasRowNames( REXP reNames ) throws REXPMismatchException {
+		if ( reNames == null )
+			return false;
+		if ( !reNames.isInteger() )
+			return true;
+		int[] numericIndex = reNames.asIntegers();
+		return numericIndex.length != 2 || numericIndex[0] != Integer.MIN_VALUE || numericIndex[1] < 0;
+	}
+
+	/**
+	 * Converts the row.names attribute of a data frame to the row names column of the Map result type
+	 */
+	static Object convertRowNames( REXP reNames ) throws REXPMismatchException {
+		if ( !reNames.isInteger() )
+			return reNames.asNativeJavaObject();
+		
+		int[] numericIndex = reNames.asIntegers();
+		if ( numericIndex.length != 2 || numericIndex[0] != Integer.MIN_VALUE )
+			return numericIndex;
+		
+		// NA followed by a negative number L means an auto index of [1 ... -L]
+		int len = - numericIndex[1];
+		int[] autoIndex = new int[Math.max( len, 0 )];
+		for ( int i = 0; i < len; i++ )
+			autoIndex[i] = i + 1;
+		return autoIndex;
+	}
+
+	/**
+	 * Converts one column
+	 * @param split If true, a long column is decoded by parallel tasks; must be called from a fork-join task
+	 */
+	private static Object convertColumn( String name, REXP val, boolean factors, boolean split )
+			throws REXPMismatchException {
+		if ( factors && val.isFactor() ) {
+			REXP levels = val.getAttribute( "levels" );
+			return new RFactorColumn( name, val.asIntegers(), levels == null ? new String[0] : levels.asStrings() );
+		} else if ( factors && val.isString() ) {
+			return RArrayConverter.toFactorColumn( name, val.asStrings() );
+		} else if ( split && val.isFactor() && val.length() > MIN_TASK_SIZE ) {
+			// Decode to the same strings as asNativeJavaObject, a range of rows at a time
+			String[] dest = new String[val.length()];
+			new FactorTask( val.asFactor(), dest, 0, dest.length ).invoke();
+			return dest;
+		} else {
+			return val.asNativeJavaObject();
+		}
+	}
+
+	/**
+	 * Estimates the cost of converting a column, as the number of values to decode
+	 */
+	private static long costOf( REXP val, boolean factors ) throws REXPMismatchException {
+		if ( factors ? val.isString() : val.isFactor() )
+			return val.length();
+		return 1;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if ( pool == null )
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	static synchronized void shutdown() {
+		if ( pool != null ) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Converts a range of columns; splits the range in two while it holds several columns and enough work
+	 */
+	private static class ColumnsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final String[] names;
+		private final RList columns;
+		private final boolean factors;
+		private final long[] costs;
+		private final Object[] values;
+		private final int from;
+		private final int to;
+
+		ColumnsTask( String[] names, RList columns, boolean factors, long[] costs, Object[] values, int from,
+				int to ) {
+			this.names = names;
+			this.columns = columns;
+			this.factors = factors;
+			this.costs = costs;
+			this.values = values;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				if ( to - from == 1 ) {
+					values[from] = convertColumn( names[from], columns.at( from ), factors, true );
+				} else if ( costs[to] - costs[from] < MIN_TASK_SIZE ) {
+					for ( int col = from; col < to; col++ )
+						values[col] = convertColumn( names[col], columns.at( col ), factors, false );
+				} else {
+					int mid = ( from + to ) >>> 1;
+					invokeAll( new ColumnsTask( names, columns, factors, costs, values, from, mid ),
+							new ColumnsTask( names, columns, factors, costs, values, mid, to ) );
+				}
+			} catch ( REXPMismatchException e ) {
+				throw new ConversionException( e );
+			}
+		}
+	}
+
+	/**
+	 * Decodes a range of rows of a factor to strings
+	 */
+	private static class FactorTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RFactor factor;
+		private final String[] dest;
+		private final int from;
+		private final int to;
+
+		FactorTask( RFactor factor, String[] dest, int from, int to ) {
+			this.factor = factor;
+			this.dest = dest;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if ( to - from <= MIN_TASK_SIZE ) {
+				for ( int i = from; i < to; i++ )
+					dest[i] = factor.at( i );
+			} else {
+				int mid = ( from + to ) >>> 1;
+				invokeAll( new FactorTask( factor, dest, from, mid ), new FactorTask( factor, dest, mid, to ) );
+			}
+		}
+	}
+
+	/**
+	 * Carries a conversion error out of a fork-join task
+	 */
+	private static class ConversionException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ConversionException( REXPMismatchException cause ) {
+			super( cause );
+		}
+	}
+}
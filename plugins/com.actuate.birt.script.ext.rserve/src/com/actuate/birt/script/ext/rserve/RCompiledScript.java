@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * A compiled R script. The script text is normalized once at compile time. The first time the script
+ * is run on a connection, it is parsed by R and stored server-side as an R expression under a name
+ * derived from the script's hash; subsequent runs on the same connection only send a short invocation
+ * of that stored expression. If the stored expression has been removed from the workspace since (e.g. by
+ * rm(list = ls(all.names = TRUE))), the invocation fails without running anything, and the script is
+ * installed again.
+ */
+public class RCompiledScript extends CompiledScript {
+
+	/** Name of the R environment (in the global environment) that holds parsed compiled scripts */
+	static final String COMPILED_SCRIPTS_ENV = ".birt.cs";
+
+	private static final String SOURCE_VAR = ".birt.src";
+
+	/** Error raised by an invocation whose parsed script is no longer in the workspace */
+	static final String NOT_INSTALLED_ERROR = "BIRT compiled script is not installed";
+
+	/** Names of the compiled scripts installed on each connection */
+	private static Map<RConnection, Set<String>> installedScripts =
+			Collections.synchronizedMap( new WeakHashMap<RConnection, Set<String>>() );
+
+	private final RScriptEngine engine;
+	private final String script;
+	private final String name;
+
+	RCompiledScript( RScriptEngine engine, String script ) {
+		this.engine = engine;
+		this.script = script;
+		this.name = hash( script );
+	}
+
+	@Override
+	public Object eval( ScriptContext context ) throws ScriptException {
+		return engine.evalCompiled( this, context );
+	}
+
+	@Override
+	public ScriptEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Gets the normalized script text
+	 */
+	public String getScript() {
+		return script;
+	}
+
+	/**
+	 * Makes sure the parsed script is available on the connection, and returns the R statement that runs it
+	 */
+	String install( RScriptEngine engine, RConnection rconn, ScriptContext context ) throws RserveException {
+		Set<String> installed;
+		synchronized ( installedScripts ) {
+			installed = installedScripts.get( rconn );
+			if ( installed == null ) {
+				installed = Collections.synchronizedSet( new HashSet<String>() );
+				installedScripts.put( rconn, installed );
+			}
+		}
+
+		if ( !installed.contains( name ) ) {
+			rconn.assign( SOURCE_VAR, script );
+			engine.voidEval( rconn, "if (!exists(\"" + COMPILED_SCRIPTS_ENV + "\", envir = globalenv(), inherits = FALSE)) "
+					+ "assign(\"" + COMPILED_SCRIPTS_ENV + "\", new.env(), envir = globalenv())\n"
+					+ COMPILED_SCRIPTS_ENV + "[[\"" + name + "\"]] <- parse(text = " + SOURCE_VAR + ")\n"
+					+ "rm(" + SOURCE_VAR + ")", context );
+			installed.add( name );
+		}
+		return "if (is.null(get0(\"" + COMPILED_SCRIPTS_ENV + "\", envir = globalenv(), inherits = FALSE)[[\"" + name 
+				+ "\"]])) stop(\"" + NOT_INSTALLED_ERROR + "\")\n"
+				+ "eval(" + COMPILED_SCRIPTS_ENV + "[[\"" + name + "\"]], envir = globalenv())";
+	}
+
+	/**
+	 * Forgets the scripts installed on a connection, after an invocation found its script missing; they are 
+	 * installed again when they are next run
+	 */
+	static void uninstall( RConnection rconn ) {
+		installedScripts.remove( rconn );
+	}
+
+	/**
+	 * Checks whether an error message is that of an invocation whose script is missing
+	 */
+	static boolean isNotInstalledError( String message ) {
+		return message != null && message.contains( NOT_INSTALLED_ERROR );
+	}
+
+	private static String hash( String script ) {
+		try {
+			MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+			byte[] digest = md.digest( script.getBytes( StandardCharsets.UTF_8 ) );
+			StringBuilder sb = new StringBuilder( "s" );
+			for ( byte b : digest )
+				sb.append( String.format( "%02x", b & 0xff ) );
+			return sb.toString();
+		} catch ( NoSuchAlgorithmException e ) {
+			// SHA-1 is required to be supported by every Java platform
+			throw new IllegalStateException( e );
+		}
+	}
+}
@@ -0,0 +1,471 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * Keyed pool of Rserve connections. Connections are keyed by host, port and credentials, so that
+ * a connection is only ever handed out to callers that could have opened it themselves.
+ * Idle connections are validated on borrow, evicted after an idle timeout, and retired once they
+ * reach their maximum lifetime. The R workspace is cleared before a connection is put back into
+ * the pool, so variables defined by one report are not visible to the next.
+ * Connections can be warmed up by an init script when they are opened; the pool then keeps at least
+ * minIdle initialized connections ready per key, replenishing them in the background as they are borrowed.
+ */
+class RConnectionPool {
+	private static Logger logger = Logger.getLogger( RConnectionPool.class.getName() );
+
+	/** Interval between two runs of the idle connection evictor, in milliseconds */
+	static final long EVICTION_INTERVAL = 30000L;
+
+	/** Name of the R variable that lists the variables defined by the init script */
+	static final String KEEP_VAR = ".birt.keep";
+
+	/**
+	 * R statement used to clear the global environment before a connection is reused. Compiled scripts
+	 * are kept, since they only depend on the script text, and so are the variables defined by the
+	 * init script. Attached packages are not affected.
+	 */
+	static final String RESET_SCRIPT = "rm(list = setdiff(ls(all.names = TRUE, envir = globalenv()), c(\""
+			+ RCompiledScript.COMPILED_SCRIPTS_ENV + "\", \"" + KEEP_VAR + "\", get0(\"" + KEEP_VAR
+			+ "\", envir = globalenv(), inherits = FALSE))), envir = globalenv())";
+
+	/** R statement used to validate an idle connection */
+	private static final String VALIDATE_SCRIPT = "NULL";
+
+	private final ConcurrentHashMap<PoolKey, KeyedPool> pools = new ConcurrentHashMap<PoolKey, KeyedPool>();
+	private ScheduledExecutorService evictor;
+	private boolean shutdown;
+
+	/**
+	 * Borrows a connection from the pool, or opens a new one if no valid idle connection is available
+	 * @param config Limits of the key's pool; only used if the key has no pool yet
+	 */
+	PooledConnection borrow( PoolKey key, PoolConfig config ) throws RserveException {
+		KeyedPool keyedPool = getKeyedPool( key, config );
+		PoolConfig cfg = keyedPool.config;
+		startEvictor();
+
+		PooledConnection pc;
+		while ( ( pc = keyedPool.pollIdle() ) != null ) {
+			if ( isUsable( pc, cfg, System.currentTimeMillis() )
+					&& ( !cfg.validateOnBorrow || validate( pc ) ) ) {
+				break;
+			}
+			destroy( pc );
+		}
+		if ( pc == null )
+			pc = create( key );
+		
+		// Replace the connection we took, so the next borrower also gets a warm one
+		if ( cfg.minIdle > 0 )
+			scheduleWarmUp( key );
+		return pc;
+	}
+
+	/**
+	 * Opens connections in the background until minIdle initialized connections are idle for a key
+	 */
+	void warmUp( PoolKey key, PoolConfig config ) {
+		KeyedPool keyedPool = getKeyedPool( key, config );
+		startEvictor();
+		if ( keyedPool.config.minIdle > 0 )
+			scheduleWarmUp( key );
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. The R workspace is reset first; connections that
+	 * cannot be reset, have expired, or exceed the idle limit are closed.
+	 */
+	void release( PooledConnection pc ) {
+		KeyedPool keyedPool = pools.get( pc.key );
+		if ( keyedPool == null || isShutdown() || pc.broken || !pc.conn.isConnected() ) {
+			destroy( pc );
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		if ( !isUsable( pc, keyedPool.config, now ) || !reset( pc ) ) {
+			destroy( pc );
+			return;
+		}
+
+		pc.lastUsedTime = now;
+		if ( !keyedPool.offerIdle( pc ) )
+			destroy( pc );
+	}
+
+	/**
+	 * Closes a borrowed connection instead of returning it to the pool
+	 */
+	void invalidate( PooledConnection pc ) {
+		destroy( pc );
+	}
+
+	/**
+	 * Closes idle connections that have been unused for longer than the idle timeout (while keeping
+	 * at least minIdle connections per key), and those that have reached their maximum lifetime
+	 */
+	void evict() {
+		long now = System.currentTimeMillis();
+		for ( KeyedPool keyedPool : pools.values() ) {
+			for ( PooledConnection pc : keyedPool.removeExpired( now ) )
+				destroy( pc );
+		}
+	}
+
+	/**
+	 * Opens and initializes connections until a key has minIdle idle connections
+	 */
+	void fill( PoolKey key ) {
+		KeyedPool keyedPool = pools.get( key );
+		if ( keyedPool == null )
+			return;
+		while ( !isShutdown() && keyedPool.startWarmUp() ) {
+			PooledConnection pc = null;
+			try {
+				pc = create( key );
+			} catch ( RserveException e ) {
+				// Endpoint is unavailable; try again at next eviction run
+				logger.log( Level.FINE, "Failed to open warm Rserve connection", e );
+				return;
+			} finally {
+				if ( !keyedPool.endWarmUp( pc ) && pc != null )
+					destroy( pc );
+			}
+		}
+	}
+
+	private void scheduleWarmUp( final PoolKey key ) {
+		ScheduledExecutorService executor;
+		synchronized ( this ) {
+			executor = evictor;
+		}
+		if ( executor == null )
+			return;
+		executor.execute( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fill( key );
+				} catch ( RuntimeException e ) {
+					logger.log( Level.WARNING, "Failed to warm up Rserve connections", e );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Closes all idle connections and stops the evictor. Connections that are currently borrowed
+	 * are closed when they are released.
+	 */
+	void shutdown() {
+		synchronized ( this ) {
+			shutdown = true;
+			if ( evictor != null ) {
+				evictor.shutdownNow();
+				evictor = null;
+			}
+		}
+		for ( KeyedPool keyedPool : pools.values() ) {
+			PooledConnection pc;
+			while ( ( pc = keyedPool.pollIdle() ) != null )
+				destroy( pc );
+		}
+		pools.clear();
+	}
+
+	private synchronized boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Gets the pool of a key, creating it if needed. The limits of a key are those it was first used with.
+	 */
+	private KeyedPool getKeyedPool( PoolKey key, PoolConfig config ) {
+		KeyedPool keyedPool = pools.get( key );
+		if ( keyedPool == null ) {
+			keyedPool = new KeyedPool( config );
+			KeyedPool existing = pools.putIfAbsent( key, keyedPool );
+			if ( existing != null )
+				keyedPool = existing;
+		}
+		return keyedPool;
+	}
+
+	private synchronized void startEvictor() {
+		if ( evictor != null )
+			return;
+		shutdown = false;
+		evictor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "Rserve connection pool evictor" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+		evictor.scheduleWithFixedDelay( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evict();
+					for ( PoolKey key : pools.keySet() )
+						fill( key );
+				} catch ( RuntimeException e ) {
+					logger.log( Level.WARNING, "Failed to evict idle Rserve connections", e );
+				}
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS );
+	}
+
+	private PooledConnection create( PoolKey key ) throws RserveException {
+		logger.info( "Open Rserve connection: host=" + key.host + ", port=" + key.port + ", user=" + key.user );
+
+		RConnection rconn = open( key.host, key.port, key.user, key.password );
+		
+		// Run init script, and remember the variables it defines so that they survive workspace resets.
+		// Also get the process ID of the server, so that a runaway evaluation can be stopped. Rserve on Windows
+		// serves all connections from one process, which must not be stopped; its ID is left unknown
+		StringBuilder script = new StringBuilder();
+		if ( key.initScript != null )
+			script.append( key.initScript ).append( "\n" ).append( KEEP_VAR )
+					.append( " <- ls(all.names = TRUE, envir = globalenv())\n" );
+		script.append( "if (.Platform$OS.type == \"windows\") 0L else Sys.getpid()" );
+		PooledConnection pc = new PooledConnection( key, rconn );
+		try {
+			pc.pid = rconn.eval( script.toString() ).asInteger();
+		} catch ( RserveException e ) {
+			rconn.close();
+			throw e;
+		} catch ( REXPMismatchException e ) {
+			logger.log( Level.FINE, "Failed to get Rserve process ID", e );
+		}
+		return pc;
+	}
+
+	/**
+	 * Opens a connection to Rserve and logs in
+	 * @param port Rserve port; 0 for default port
+	 */
+	static RConnection open( String host, int port, String user, String password ) throws RserveException {
+		RConnection rconn;
+		if ( port > 0 )
+			rconn = new RConnection( host, port );
+		else
+			rconn = new RConnection( host );
+
+		if ( rconn.needLogin() ) {
+			// It appears that we must do the login() call, otherwise  communication with
+			// Rserve may get messed up and the connection will hang.
+			// So send empty user name/password if none supplied
+			long start = System.nanoTime();
+			try {
+				rconn.login( user == null ? "" : user, password == null ? "" : password );
+				if ( RMetrics.isEnabled() )
+					RMetrics.loggedIn( port > 0 ? host + ":" + port : host, System.nanoTime() - start );
+			} catch ( RserveException e ) {
+				rconn.close();
+				throw e;
+			}
+		}
+		return rconn;
+	}
+
+	private boolean isUsable( PooledConnection pc, PoolConfig config, long now ) {
+		if ( !pc.conn.isConnected() )
+			return false;
+		return config.maxLifetime <= 0 || now - pc.createdTime < config.maxLifetime;
+	}
+
+	private boolean validate( PooledConnection pc ) {
+		try {
+			pc.conn.voidEval( VALIDATE_SCRIPT );
+			return true;
+		} catch ( RserveException e ) {
+			logger.log( Level.FINE, "Idle Rserve connection failed validation", e );
+			return false;
+		}
+	}
+
+	private boolean reset( PooledConnection pc ) {
+		try {
+			pc.conn.voidEval( RESET_SCRIPT );
+			return true;
+		} catch ( RserveException e ) {
+			logger.log( Level.FINE, "Failed to reset R workspace", e );
+			return false;
+		}
+	}
+
+	private void destroy( PooledConnection pc ) {
+		pc.conn.close();
+	}
+
+	/**
+	 * Identifies the Rserve server and credentials a pooled connection belongs to, and how it is initialized
+	 */
+	static class PoolKey {
+		final String host;
+		final int port;
+		final String user;
+		final String password;
+		/** R script run when a connection is opened; null if none */
+		final String initScript;
+
+		PoolKey( String host, int port, String user, String password ) {
+			this( host, port, user, password, null );
+		}
+
+		PoolKey( String host, int port, String user, String password, String initScript ) {
+			this.host = host;
+			this.port = port;
+			this.user = user;
+			this.password = password;
+			this.initScript = initScript;
+		}
+
+		@Override
+		public boolean equals( Object obj ) {
+			if ( this == obj )
+				return true;
+			if ( !( obj instanceof PoolKey ) )
+				return false;
+			PoolKey other = (PoolKey) obj;
+			return port == other.port && host.equals( other.host )
+					&& equal( user, other.user ) && equal( password, other.password )
+					&& equal( initScript, other.initScript );
+		}
+
+		@Override
+		public int hashCode() {
+			int h = host.hashCode() * 31 + port;
+			h = h * 31 + ( user == null ? 0 : user.hashCode() );
+			return h * 31 + ( initScript == null ? 0 : initScript.hashCode() );
+		}
+
+		private static boolean equal( String a, String b ) {
+			return a == null ? b == null : a.equals( b );
+		}
+	}
+
+	/**
+	 * Pool limits; see the PROP_POOL_* properties of RserveConnectionFactory
+	 */
+	static class PoolConfig {
+		int minIdle = 0;
+		int maxIdle = 8;
+		long idleTimeout = 300000L;
+		long maxLifetime = 1800000L;
+		boolean validateOnBorrow = true;
+	}
+
+	/**
+	 * A physical Rserve connection managed by the pool
+	 */
+	static class PooledConnection {
+		final PoolKey key;
+		final RConnection conn;
+		final long createdTime;
+		long lastUsedTime;
+		/** Process ID of the Rserve child process serving this connection; 0 if unknown, or if the server 
+		 *  does not fork a process per connection */
+		volatile int pid;
+		/** Set if an evaluation was interrupted, leaving the connection unusable */
+		volatile boolean broken;
+
+		PooledConnection( PoolKey key, RConnection conn ) {
+			this.key = key;
+			this.conn = conn;
+			this.createdTime = System.currentTimeMillis();
+			this.lastUsedTime = createdTime;
+		}
+	}
+
+	/**
+	 * Idle connections of one pool key. Most recently returned connections are borrowed first
+	 */
+	private static class KeyedPool {
+		private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+		final PoolConfig config;
+		/** Number of connections being opened by the warm-up task */
+		private int warming;
+
+		KeyedPool( PoolConfig config ) {
+			this.config = config;
+		}
+
+		synchronized PooledConnection pollIdle() {
+			return idle.pollFirst();
+		}
+
+		synchronized boolean offerIdle( PooledConnection pc ) {
+			if ( idle.size() >= config.maxIdle )
+				return false;
+			idle.addFirst( pc );
+			return true;
+		}
+
+		/**
+		 * Checks whether one more connection is needed to reach minIdle, and if so reserves its slot
+		 */
+		synchronized boolean startWarmUp() {
+			PoolConfig cfg = config;
+			if ( idle.size() + warming >= Math.min( cfg.minIdle, cfg.maxIdle ) )
+				return false;
+			warming++;
+			return true;
+		}
+
+		/**
+		 * Adds a connection opened by the warm-up task to the idle connections
+		 * @param pc Opened connection, or null if it could not be opened
+		 * @return Whether the connection was added
+		 */
+		synchronized boolean endWarmUp( PooledConnection pc ) {
+			warming--;
+			if ( pc == null || idle.size() >= config.maxIdle )
+				return false;
+			// Warm connections go last, so that recently used connections are still reused first
+			idle.addLast( pc );
+			return true;
+		}
+
+		synchronized List<PooledConnection> removeExpired( long now ) {
+			List<PooledConnection> expired = new ArrayList<PooledConnection>();
+			PoolConfig cfg = config;
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while ( it.hasNext() ) {
+				PooledConnection pc = it.next();
+				boolean lifetimeExceeded = cfg.maxLifetime > 0 && now - pc.createdTime >= cfg.maxLifetime;
+				boolean idleExceeded = cfg.idleTimeout > 0 && now - pc.lastUsedTime >= cfg.idleTimeout
+						&& idle.size() > cfg.minIdle;
+				if ( lifetimeExceeded || idleExceeded ) {
+					it.remove();
+					expired.add( pc );
+				}
+			}
+			return expired;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+/**
+ * Per-thread reusable arrays for the buffer-accepting conversions of RVectorConverter, so that repeated
+ * conversions do not allocate:
+ * <pre>
+ * double[] values = RConversionBuffers.get().doubles( rexp.length() );
+ * int n = RVectorConverter.to_doubles( rexp, values );
+ * </pre>
+ * Arrays are only valid until the next request of the same type by the same thread. Arrays larger than
+ * MAX_RETAINED_LENGTH are not retained, so that one large result does not pin memory for the life of a thread.
+ */
+public class RConversionBuffers {
+	/** Largest array length kept for reuse */
+	public static final int MAX_RETAINED_LENGTH = 1 << 20;
+
+	private static final ThreadLocal<RConversionBuffers> buffers = new ThreadLocal<RConversionBuffers>() {
+		@Override
+		protected RConversionBuffers initialValue() {
+			return new RConversionBuffers();
+		}
+	};
+
+	private double[] doubles = new double[0];
+	private int[] ints = new int[0];
+	private String[] strings = new String[0];
+
+	private RConversionBuffers() {
+	}
+
+	/**
+	 * Gets the buffers of the current thread
+	 */
+	public static RConversionBuffers get() {
+		return buffers.get();
+	}
+
+	/**
+	 * Gets a double array of at least the specified length. Contents are undefined.
+	 */
+	public double[] doubles( int minLength ) {
+		if ( doubles.length >= minLength )
+			return doubles;
+		double[] ret = new double[grow( doubles.length, minLength )];
+		if ( ret.length <= MAX_RETAINED_LENGTH )
+			doubles = ret;
+		return ret;
+	}
+
+	/**
+	 * Gets an int array of at least the specified length. Contents are undefined.
+	 */
+	public int[] ints( int minLength ) {
+		if ( ints.length >= minLength )
+			return ints;
+		int[] ret = new int[grow( ints.length, minLength )];
+		if ( ret.length <= MAX_RETAINED_LENGTH )
+			ints = ret;
+		return ret;
+	}
+
+	/**
+	 * Gets a String array of at least the specified length. Contents are undefined, and may reference
+	 * strings of earlier conversions until they are overwritten.
+	 */
+	public String[] strings( int minLength ) {
+		if ( strings.length >= minLength )
+			return strings;
+		String[] ret = new String[grow( strings.length, minLength )];
+		if ( ret.length <= MAX_RETAINED_LENGTH )
+			strings = ret;
+		return ret;
+	}
+
+	/**
+	 * Releases the arrays of the current thread
+	 */
+	public void clear() {
+		doubles = new double[0];
+		ints = new int[0];
+		strings = new String[0];
+	}
+
+	private static int grow( int length, int minLength ) {
+		// Grow by 1.5x to amortize reallocations; never exceed what is needed once past the retention limit
+		int len = Math.max( minLength, length + ( length >> 1 ) );
+		return len > MAX_RETAINED_LENGTH ? minLength : len;
+	}
+}
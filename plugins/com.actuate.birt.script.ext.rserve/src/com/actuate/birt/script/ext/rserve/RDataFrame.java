@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.RList;
+
+/**
+ * Columnar representation of an R data frame. Each column keeps its values in a typed array (see
+ * RColumn), so reading the data frame does not box individual values. Rows can be read with an
+ * allocation-free Cursor.
+ */
+public class RDataFrame {
+	private static final String DEFAULT_COLUMN_NAME = "column_";
+
+	private final RColumn[] columns;
+	private final String[] columnNames;
+	private final RColumn rowNames;
+	private final int rowCount;
+
+	public RDataFrame( RColumn[] columns, RColumn rowNames, int rowCount ) {
+		this.columns = columns;
+		this.rowNames = rowNames;
+		this.rowCount = rowCount;
+		this.columnNames = new String[columns.length];
+		for ( int i = 0; i < columns.length; i++ )
+			columnNames[i] = columns[i].getName();
+	}
+
+	/**
+	 * Converts a data frame (or a list of equal-length vectors) to an RDataFrame
+	 */
+	public static RDataFrame fromREXP( REXP rexp ) throws REXPMismatchException {
+		if ( !rexp.isList() )
+			throw new REXPMismatchException( rexp, "data frame" );
+
+		RList rlist = rexp.asList();
+		int nCols = rlist.size();
+		String[] names = rlist.keys();
+		RColumn[] columns = new RColumn[nCols];
+		for ( int col = 0; col < nCols; col++ ) {
+			String colName = names == null ? null : names[col];
+			// Generate unique column name for unnamed columns
+			if ( colName == null || colName.isEmpty() )
+				colName = DEFAULT_COLUMN_NAME + ( col + 1 );
+			columns[col] = RColumn.fromREXP( colName, rlist.at( col ) );
+		}
+
+		RColumn rowNames = null;
+		int rowCount = nCols > 0 ? columns[0].length() : 0;
+		REXP reNames = rexp.getAttribute( "row.names" );
+		if ( reNames != null ) {
+			if ( reNames.isInteger() ) {
+				int[] index = reNames.asIntegers();
+				if ( index.length == 2 && index[0] == Integer.MIN_VALUE ) {
+					// NA followed by a negative number L means an automatic index of [1 ... -L]
+					rowCount = Math.abs( index[1] );
+				} else {
+					rowNames = new RIntColumn( null, RColumn.Type.INTEGER, index );
+					rowCount = index.length;
+				}
+			} else {
+				rowNames = RColumn.fromREXP( null, reNames );
+				rowCount = rowNames.length();
+			}
+		}
+
+		for ( RColumn column : columns ) {
+			if ( column.length() != rowCount )
+				throw new REXPMismatchException( rexp, "columns of unequal length" );
+		}
+		return new RDataFrame( columns, rowNames, rowCount );
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	public String[] getColumnNames() {
+		return columnNames.clone();
+	}
+
+	public RColumn getColumn( int index ) {
+		return columns[index];
+	}
+
+	/**
+	 * Gets column by name; returns null if no such column exists
+	 */
+	public RColumn getColumn( String name ) {
+		int index = getColumnIndex( name );
+		return index < 0 ? null : columns[index];
+	}
+
+	/**
+	 * Gets the index of a named column, or -1 if no such column exists
+	 */
+	public int getColumnIndex( String name ) {
+		for ( int i = 0; i < columnNames.length; i++ ) {
+			if ( columnNames[i].equals( name ) )
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the type of each column
+	 */
+	public RColumn.Type[] getColumnTypes() {
+		RColumn.Type[] types = new RColumn.Type[columns.length];
+		for ( int i = 0; i < columns.length; i++ )
+			types[i] = columns[i].getType();
+		return types;
+	}
+
+	/**
+	 * Gets the row names, or null if the data frame uses the automatic row index 1..n
+	 */
+	public RColumn getRowNames() {
+		return rowNames;
+	}
+
+	/**
+	 * Creates a new cursor positioned before the first row
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Forward-only cursor over the rows of a data frame. Values are read directly from the column
+	 * arrays; none of the accessors allocates memory, except getObject.
+	 */
+	public class Cursor {
+		private int row = -1;
+
+		/**
+		 * Moves to the next row; returns false if there is no more row
+		 */
+		public boolean next() {
+			if ( row + 1 >= rowCount )
+				return false;
+			++row;
+			return true;
+		}
+
+		/**
+		 * Gets the 0-based index of the current row
+		 */
+		public int getRow() {
+			return row;
+		}
+
+		public boolean isNA( int col ) {
+			return columns[col].isNA( row );
+		}
+
+		/**
+		 * Gets an integer, logical or factor code value. NA is returned as REXPInteger.NA
+		 */
+		public int getInt( int col ) {
+			RColumn column = columns[col];
+			if ( column instanceof RIntColumn )
+				return ( (RIntColumn) column ).getInt( row );
+			if ( column instanceof RFactorColumn )
+				return ( (RFactorColumn) column ).getCode( row );
+			if ( column instanceof RDoubleColumn )
+				return RVectorConverter.toInt( ( (RDoubleColumn) column ).getDouble( row ) );
+			throw new IllegalArgumentException( "Not a numeric column: " + column.getName() );
+		}
+
+		/**
+		 * Gets a numeric value. NA is returned as REXPDouble.NA
+		 */
+		public double getDouble( int col ) {
+			RColumn column = columns[col];
+			if ( column instanceof RDoubleColumn )
+				return ( (RDoubleColumn) column ).getDouble( row );
+			if ( column instanceof RIntColumn )
+				return RVectorConverter.toDouble( ( (RIntColumn) column ).getInt( row ) );
+			throw new IllegalArgumentException( "Not a numeric column: " + column.getName() );
+		}
+
+		/**
+		 * Gets a character or factor value. NA is returned as null
+		 */
+		public String getString( int col ) {
+			RColumn column = columns[col];
+			if ( column instanceof RStringColumn )
+				return ( (RStringColumn) column ).getString( row );
+			if ( column instanceof RFactorColumn )
+				return ( (RFactorColumn) column ).getString( row );
+			Object value = column.getObject( row );
+			return value == null ? null : value.toString();
+		}
+
+		/**
+		 * Gets value as an object. NA is returned as null
+		 */
+		public Object getObject( int col ) {
+			return columns[col].getObject( row );
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.REngineException;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * Uploads a data frame to Rserve in chunks of rows, so that large tables can be sent with bounded memory.
+ * Columns are allocated on the server up front, and each chunk is transferred as one raw vector per numeric
+ * column (decoded by readBin on the server) or one character vector per string column, then copied into
+ * place. Dates added to a DOUBLE column are sent as seconds since the epoch. The data frame is only bound to
+ * its variable by finish(); call close() to discard an unfinished upload.
+ * <pre>
+ * RDataFrameUploader up = new RDataFrameUploader( rconn, "df", names, types, rowCount, 10000 );
+ * try {
+ *     while ( ... ) up.addRow( values );
+ *     up.finish();
+ * } finally {
+ *     up.close();
+ * }
+ * </pre>
+ */
+public class RDataFrameUploader implements AutoCloseable {
+	private static final String UPLOAD_VAR_PREFIX = ".birt.upload.";
+	private static final String CHUNK_VAR = ".birt.chunk";
+
+	private static AtomicInteger uploadCounter = new AtomicInteger();
+
+	private final RConnection rconn;
+	private final String env;
+	private final RColumn.Type[] types;
+	private final int chunkSize;
+
+	/** Buffered values of current chunk, per column: double[], int[] or String[] */
+	private final Object[] buffers;
+	/** Reusable little-endian encoding buffers of full chunks, per numeric column */
+	private final byte[][] encoded;
+	/** DOUBLE columns that hold Dates, as seconds, and are classed as POSIXct by finish(); null if none */
+	private boolean[] dateTimes;
+	private int buffered;
+	private int rowCount;
+	private int capacity;
+	private long bytesSent;
+	private boolean closed;
+
+	/**
+	 * Starts an upload
+	 * @param rconn Connection to upload to
+	 * @param varName Name of the R variable that receives the data frame
+	 * @param names Column names
+	 * @param types Column types. FACTOR columns are uploaded as strings and converted by finish()
+	 * @param expectedRows Expected number of rows, used to allocate columns on the server; columns grow as
+	 *        needed if more rows are added. 0 if unknown
+	 * @param chunkSize Number of rows buffered before they are sent
+	 */
+	public RDataFrameUploader( RConnection rconn, String varName, String[] names, RColumn.Type[] types,
+			int expectedRows, int chunkSize ) throws RserveException {
+		if ( names.length != types.length )
+			throw new IllegalArgumentException( "names and types differ in length" );
+		if ( chunkSize <= 0 )
+			throw new IllegalArgumentException( "chunkSize" );
+		this.rconn = rconn;
+		this.env = UPLOAD_VAR_PREFIX + uploadCounter.incrementAndGet();
+		this.types = types.clone();
+		this.chunkSize = chunkSize;
+		this.buffers = new Object[types.length];
+		this.encoded = new byte[types.length][];
+		for ( int j = 0; j < types.length; j++ ) {
+			switch ( types[j] ) {
+			case DOUBLE:
+				buffers[j] = new double[chunkSize];
+				break;
+			case INTEGER:
+			case LOGICAL:
+				buffers[j] = new int[chunkSize];
+				break;
+			default:
+				buffers[j] = new String[chunkSize];
+				break;
+			}
+		}
+
+		// Target name and column names are passed as values, so they need no quoting
+		capacity = Math.max( expectedRows, 0 );
+		StringBuilder script = new StringBuilder();
+		script.append( env ).append( " <- new.env()\n" );
+		script.append( env ).append( "$target <- " ).append( CHUNK_VAR ).append( "[[1]]\n" );
+		script.append( env ).append( "$names <- " ).append( CHUNK_VAR ).append( "[[2]]\n" );
+		for ( int j = 0; j < types.length; j++ )
+			script.append( column( j ) ).append( " <- " ).append( allocator( types[j] ) )
+					.append( "(" ).append( capacity ).append( ")\n" );
+		script.append( "rm(" ).append( CHUNK_VAR ).append( ")" );
+		try {
+			rconn.assign( CHUNK_VAR, new REXPGenericVector( new RList( new REXP[] {
+					new REXPString( varName ), new REXPString( names ) } ) ) );
+		} catch ( REngineException e ) {
+			throw toRserveException( e );
+		}
+		rconn.voidEval( script.toString() );
+	}
+
+	/**
+	 * Uploads a map of equal-length column arrays or Collections as a data frame
+	 * @see RScriptEngine#ATTR_UPLOAD_CHUNK_SIZE
+	 */
+	static long upload( RConnection rconn, String varName, Map<String, Object> map, int chunkSize )
+			throws RserveException {
+		String[] names = new String[map.size()];
+		Object[] columns = new Object[map.size()];
+		RColumn.Type[] types = new RColumn.Type[map.size()];
+		boolean[] dateTimes = new boolean[map.size()];
+		int rows = -1;
+		int j = 0;
+		for ( Map.Entry<String, Object> entry : map.entrySet() ) {
+			Object value = entry.getValue();
+			if ( value instanceof Collection )
+				value = ( (Collection<?>) value ).toArray();
+			names[j] = entry.getKey();
+			columns[j] = value;
+			types[j] = typeOf( value );
+			if ( types[j] == null ) {
+				types[j] = RColumn.Type.DOUBLE;
+				dateTimes[j] = true;
+			}
+			rows = Array.getLength( value );
+			j++;
+		}
+
+		RDataFrameUploader up = new RDataFrameUploader( rconn, varName, names, types, rows, chunkSize );
+		up.dateTimes = dateTimes;
+		try {
+			for ( int from = 0; from < rows; from += chunkSize )
+				up.append( columns, from, Math.min( chunkSize, rows - from ) );
+			up.finish();
+			return up.getBytesSent();
+		} finally {
+			up.close();
+		}
+	}
+
+	/**
+	 * Checks whether a map can be uploaded by upload(): all values must be arrays or Collections of the
+	 * same length. byte[] values are left to the single REXP path, which sends them as raw vectors.
+	 */
+	static boolean isUploadable( Map<String, Object> map ) {
+		int rows = -1;
+		for ( Object value : map.values() ) {
+			int len;
+			if ( value instanceof Collection )
+				len = ( (Collection<?>) value ).size();
+			else if ( value != null && value.getClass().isArray() && !value.getClass().getComponentType().isArray()
+					&& !( value instanceof byte[] ) )
+				len = Array.getLength( value );
+			else
+				return false;
+			if ( rows >= 0 && len != rows )
+				return false;
+			rows = len;
+		}
+		return rows >= 0;
+	}
+
+	/**
+	 * Gets the column type used to upload a 1-dimensional array, so that the uploaded column is the vector 
+	 * RArrayConverter.toREXP would make of the array. The type of an Object[] is inferred from all of its 
+	 * values: integers are widened to DOUBLE by any other number, and a mix of numbers, Booleans, Dates or other 
+	 * values is uploaded as STRING.
+	 * @return Column type, or null for an array of Dates, which is uploaded as POSIXct
+	 */
+	static RColumn.Type typeOf( Object array ) {
+		if ( array instanceof int[] || array instanceof Integer[] )
+			return RColumn.Type.INTEGER;
+		if ( array instanceof boolean[] || array instanceof Boolean[] )
+			return RColumn.Type.LOGICAL;
+		if ( array instanceof double[] || array instanceof long[] || array instanceof float[]
+				|| array instanceof short[] || array instanceof Number[] )
+			return RColumn.Type.DOUBLE;
+		if ( array instanceof Date[] )
+			return null;
+		if ( !( array instanceof Object[] ) || array.getClass().getComponentType() != Object.class )
+			return RColumn.Type.STRING;
+
+		// Untyped array; same widening as RArrayConverter.fromObjects
+		RColumn.Type type = null;
+		boolean dates = false;
+		for ( Object v : (Object[]) array ) {
+			RColumn.Type vType;
+			if ( v == null )
+				continue;
+			else if ( v instanceof Integer )
+				vType = RColumn.Type.INTEGER;
+			else if ( v instanceof Number )
+				vType = RColumn.Type.DOUBLE;
+			else if ( v instanceof Boolean )
+				vType = RColumn.Type.LOGICAL;
+			else if ( v instanceof Date )
+				vType = RColumn.Type.DOUBLE;
+			else
+				return RColumn.Type.STRING;
+
+			if ( type == null ) {
+				type = vType;
+				dates = v instanceof Date;
+			} else if ( dates != v instanceof Date ) {
+				return RColumn.Type.STRING;
+			} else if ( type != vType ) {
+				if ( type == RColumn.Type.LOGICAL || vType == RColumn.Type.LOGICAL )
+					return RColumn.Type.STRING;
+				type = RColumn.Type.DOUBLE;
+			}
+		}
+		if ( type == null )
+			// No type information; all values are null
+			return RColumn.Type.STRING;
+		return dates ? null : type;
+	}
+
+	/**
+	 * Adds a row. Values are converted to the column types; null values are uploaded as NA.
+	 */
+	public void addRow( Object... values ) throws RserveException {
+		if ( values.length != types.length )
+			throw new IllegalArgumentException( "Expected " + types.length + " values" );
+		for ( int j = 0; j < types.length; j++ )
+			store( j, buffered, values[j] );
+		if ( ++buffered == chunkSize )
+			flush();
+	}
+
+	/**
+	 * Adds rows from column arrays
+	 * @param columns One array per column (primitive arrays, or arrays of objects)
+	 * @param offset Index of the first value to add in each array
+	 * @param len Number of rows to add
+	 */
+	public void append( Object[] columns, int offset, int len ) throws RserveException {
+		if ( columns.length != types.length )
+			throw new IllegalArgumentException( "Expected " + types.length + " columns" );
+		while ( len > 0 ) {
+			int n = Math.min( len, chunkSize - buffered );
+			for ( int j = 0; j < types.length; j++ )
+				copy( j, columns[j], offset, n );
+			buffered += n;
+			offset += n;
+			len -= n;
+			if ( buffered == chunkSize )
+				flush();
+		}
+	}
+
+	/**
+	 * Sends the remaining buffered rows, and binds the data frame to its variable
+	 */
+	public void finish() throws RserveException {
+		flush();
+		StringBuilder script = new StringBuilder();
+		for ( int j = 0; j < types.length; j++ ) {
+			if ( capacity > rowCount )
+				script.append( "length(" ).append( column( j ) ).append( ") <- " ).append( rowCount ).append( "\n" );
+			if ( types[j] == RColumn.Type.FACTOR )
+				script.append( column( j ) ).append( " <- factor(" ).append( column( j ) ).append( ")\n" );
+			else if ( dateTimes != null && dateTimes[j] )
+				script.append( "class(" ).append( column( j ) ).append( ") <- c(\"POSIXct\", \"POSIXt\")\n" );
+		}
+		script.append( "assign(" ).append( env ).append( "$target, structure(mget(paste0(\"c\", seq_along(" )
+				.append( env ).append( "$names)), envir = " ).append( env ).append( ", inherits = FALSE), names = " )
+				.append( env ).append( "$names, class = \"data.frame\", row.names = c(NA, -" ).append( rowCount )
+				.append( "L)), envir = globalenv())" );
+		rconn.voidEval( script.toString() );
+		close();
+	}
+
+	/**
+	 * Removes the temporary upload state from the R workspace. An unfinished upload is discarded.
+	 */
+	@Override
+	public void close() throws RserveException {
+		if ( !closed ) {
+			closed = true;
+			rconn.voidEval( "rm(" + env + ")" );
+		}
+	}
+
+	/**
+	 * Gets the number of rows added so far
+	 */
+	public int getRowCount() {
+		return rowCount + buffered;
+	}
+
+	/**
+	 * Gets the number of column bytes sent to the server so far
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Sends the buffered rows
+	 */
+	private void flush() throws RserveException {
+		if ( buffered == 0 )
+			return;
+		if ( closed )
+			throw new IllegalStateException( "Upload is closed" );
+
+		int n = buffered;
+		int from = rowCount + 1;
+		int to = rowCount + n;
+		StringBuilder script = new StringBuilder();
+		if ( to > capacity ) {
+			// Grow columns geometrically, so that an unknown row count costs a logarithmic number of copies
+			capacity = Math.max( to, capacity * 2 );
+			for ( int j = 0; j < types.length; j++ )
+				script.append( "length(" ).append( column( j ) ).append( ") <- " ).append( capacity ).append( "\n" );
+		}
+
+		REXP[] chunk = new REXP[types.length];
+		for ( int j = 0; j < types.length; j++ ) {
+			chunk[j] = encode( j, n );
+			script.append( column( j ) ).append( "[" ).append( from ).append( ":" ).append( to ).append( "] <- " );
+			String elem = CHUNK_VAR + "[[" + ( j + 1 ) + "]]";
+			switch ( types[j] ) {
+			case DOUBLE:
+				script.append( "readBin(" ).append( elem ).append( ", \"double\", n = " ).append( n )
+						.append( ", size = 8, endian = \"little\")\n" );
+				break;
+			case INTEGER:
+				script.append( "readBin(" ).append( elem ).append( ", \"integer\", n = " ).append( n )
+						.append( ", size = 4, endian = \"little\")\n" );
+				break;
+			case LOGICAL:
+				script.append( "as.logical(readBin(" ).append( elem ).append( ", \"integer\", n = " ).append( n )
+						.append( ", size = 4, endian = \"little\"))\n" );
+				break;
+			default:
+				script.append( elem ).append( "\n" );
+				break;
+			}
+		}
+		script.append( "rm(" ).append( CHUNK_VAR ).append( ")" );
+
+		try {
+			rconn.assign( CHUNK_VAR, new REXPGenericVector( new RList( chunk ) ) );
+		} catch ( REngineException e ) {
+			throw toRserveException( e );
+		}
+		rconn.voidEval( script.toString() );
+		rowCount = to;
+		buffered = 0;
+	}
+
+	/**
+	 * Encodes the first n buffered values of a column
+	 */
+	private REXP encode( int j, int n ) {
+		Object buffer = buffers[j];
+		if ( buffer instanceof String[] ) {
+			String[] values = new String[n];
+			System.arraycopy( buffer, 0, values, 0, n );
+			for ( String s : values )
+				bytesSent += s == null ? 2 : s.length() + 1;
+			return new REXPString( values );
+		}
+
+		int size = buffer instanceof double[] ? 8 : 4;
+		byte[] bytes = encoded[j];
+		if ( bytes == null || bytes.length != n * size ) {
+			bytes = new byte[n * size];
+			if ( n == chunkSize )
+				encoded[j] = bytes;
+		}
+		ByteBuffer bb = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+		if ( buffer instanceof double[] )
+			bb.asDoubleBuffer().put( (double[]) buffer, 0, n );
+		else
+			bb.asIntBuffer().put( (int[]) buffer, 0, n );
+		bytesSent += bytes.length;
+		return new REXPRaw( bytes );
+	}
+
+	/**
+	 * Stores a single value in the chunk buffer of a column
+	 */
+	private void store( int j, int index, Object value ) {
+		Object buffer = buffers[j];
+		if ( buffer instanceof double[] ) {
+			( (double[]) buffer )[index] = value instanceof Date ? ( (Date) value ).getTime() / 1000.0
+					: RArrayConverter.toDouble( value );
+		} else if ( buffer instanceof int[] ) {
+			int v;
+			if ( value == null )
+				v = REXPInteger.NA;
+			else if ( value instanceof Boolean )
+				v = (Boolean) value ? 1 : 0;
+			else if ( value instanceof Number )
+				v = ( (Number) value ).intValue();
+			else
+				v = Integer.parseInt( value.toString() );
+			( (int[]) buffer )[index] = v;
+		} else {
+			( (String[]) buffer )[index] = value == null ? null : value.toString();
+		}
+	}
+
+	/**
+	 * Copies values of a column array into the chunk buffer of the column
+	 */
+	private void copy( int j, Object src, int offset, int n ) {
+		Object buffer = buffers[j];
+		if ( buffer instanceof double[] && src instanceof double[] ) {
+			System.arraycopy( src, offset, buffer, buffered, n );
+		} else if ( buffer instanceof int[] && src instanceof int[] ) {
+			System.arraycopy( src, offset, buffer, buffered, n );
+		} else if ( buffer instanceof int[] && src instanceof boolean[] ) {
+			boolean[] values = (boolean[]) src;
+			int[] dest = (int[]) buffer;
+			for ( int i = 0; i < n; i++ )
+				dest[buffered + i] = values[offset + i] ? 1 : 0;
+		} else if ( buffer instanceof double[] && src instanceof int[] ) {
+			int[] values = (int[]) src;
+			double[] dest = (double[]) buffer;
+			for ( int i = 0; i < n; i++ )
+				dest[buffered + i] = values[offset + i] == REXPInteger.NA ? REXPDouble.NA : values[offset + i];
+		} else if ( src instanceof Object[] ) {
+			Object[] values = (Object[]) src;
+			for ( int i = 0; i < n; i++ )
+				store( j, buffered + i, values[offset + i] );
+		} else {
+			// Other primitive arrays
+			for ( int i = 0; i < n; i++ )
+				store( j, buffered + i, Array.get( src, offset + i ) );
+		}
+	}
+
+	private String column( int j ) {
+		return env + "$c" + ( j + 1 );
+	}
+
+	private static String allocator( RColumn.Type type ) {
+		switch ( type ) {
+		case DOUBLE:
+			return "numeric";
+		case INTEGER:
+			return "integer";
+		case LOGICAL:
+			return "logical";
+		default:
+			return "character";
+		}
+	}
+
+	private static RserveException toRserveException( REngineException e ) {
+		if ( e instanceof RserveException )
+			return (RserveException) e;
+		RserveException ret = new RserveException( null, e.getMessage() );
+		ret.initCause( e );
+		return ret;
+	}
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import org.rosuda.REngine.REXPDouble;
+
+/**
+ * Column of R double values. NA values are stored as REXPDouble.NA.
+ */
+public class RDoubleColumn extends RColumn {
+	private final double[] values;
+
+	public RDoubleColumn( String name, double[] values ) {
+		super( name, Type.DOUBLE, values.length );
+		this.values = values;
+		for ( int i = 0; i < values.length; i++ ) {
+			if ( REXPDouble.isNA( values[i] ) )
+				setNA( i );
+		}
+	}
+
+	public double getDouble( int index ) {
+		return values[index];
+	}
+
+	/**
+	 * Same as getDouble; check isNA( index ) first, since NA is returned as REXPDouble.NA
+	 */
+	public double get( int index ) {
+		return values[index];
+	}
+
+	/**
+	 * Gets the underlying array of values. The returned array is not a copy and must not be modified.
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	@Override
+	public Object getObject( int index ) {
+		return isNA( index ) ? null : values[index];
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * Tracks running evaluations so that they can be cancelled, either explicitly or when they exceed a timeout.
+ * RConnection has no way to interrupt a request, so an evaluation is cancelled by killing the Rserve process
+ * that serves its connection (from a separate connection to the same server), which stops the computation.
+ * The connection is first marked broken, so that it is not pooled again, and closed, which makes the blocked 
+ * request fail; the process is then killed by a separate task, so that a slow or unreachable server does not 
+ * hold up other cancellations. Rserve on Windows serves all connections from one process, whose ID is not
+ * recorded (see RConnectionPool.PooledConnection.pid); there, the connection is only closed.
+ */
+class REvalWatchdog {
+	private static Logger logger = Logger.getLogger( REvalWatchdog.class.getName() );
+
+	private static ScheduledExecutorService scheduler;
+	private static ExecutorService killer;
+	private static ConcurrentHashMap<RConnection, Evaluation> running = new ConcurrentHashMap<RConnection, Evaluation>();
+
+	/**
+	 * Registers an evaluation that is about to start. Evaluation.end() must be called when it completes.
+	 * @param pc Pooled connection that conn belongs to, if known; required to stop the server-side process
+	 * @param timeout Time (ms) after which the evaluation is cancelled; 0 for no timeout
+	 */
+	static Evaluation start( RConnection conn, RConnectionPool.PooledConnection pc, long timeout ) {
+		final Evaluation evaluation = new Evaluation( conn, pc, timeout );
+		running.put( conn, evaluation );
+		if ( timeout > 0 ) {
+			evaluation.timer = getScheduler().schedule( new Runnable() {
+				@Override
+				public void run() {
+					evaluation.cancel( true );
+				}
+			}, timeout, TimeUnit.MILLISECONDS );
+		}
+		return evaluation;
+	}
+
+	/**
+	 * Cancels the evaluation running on a connection
+	 * @param thread If not null, the evaluation is only cancelled if it is run by this thread
+	 * @return Whether an evaluation was running
+	 */
+	static boolean cancel( RConnection conn, Thread thread ) {
+		Evaluation evaluation = running.get( conn );
+		if ( evaluation == null || ( thread != null && evaluation.thread != thread ) )
+			return false;
+		evaluation.cancel( false );
+		return true;
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if ( scheduler == null ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "R evaluation watchdog" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+		return scheduler;
+	}
+
+	private static synchronized ExecutorService getKiller() {
+		if ( killer == null ) {
+			killer = Executors.newCachedThreadPool( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "R evaluation killer" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+		return killer;
+	}
+
+	static synchronized void shutdown() {
+		if ( scheduler != null ) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if ( killer != null ) {
+			killer.shutdownNow();
+			killer = null;
+		}
+	}
+
+	/**
+	 * Kills the Rserve process of a pooled connection, using a separate connection to the same server
+	 */
+	private static void kill( RConnectionPool.PooledConnection pc ) {
+		RConnectionPool.PoolKey key = pc.key;
+		try {
+			RConnection side = RConnectionPool.open( key.host, key.port, key.user, key.password );
+			try {
+				side.voidEval( "tools::pskill(" + pc.pid + "L, tools::SIGTERM)" );
+			} finally {
+				side.close();
+			}
+		} catch ( RserveException e ) {
+			logger.log( Level.WARNING, "Failed to stop Rserve process " + pc.pid, e );
+		}
+	}
+
+	/**
+	 * An evaluation in progress on a connection
+	 */
+	static class Evaluation {
+		private final RConnection conn;
+		private final RConnectionPool.PooledConnection pc;
+		private final long timeout;
+		private final Thread thread = Thread.currentThread();
+		private ScheduledFuture<?> timer;
+		private boolean ended;
+		private boolean cancelled;
+		private boolean timedOut;
+
+		Evaluation( RConnection conn, RConnectionPool.PooledConnection pc, long timeout ) {
+			this.conn = conn;
+			this.pc = pc;
+			this.timeout = timeout;
+		}
+
+		void cancel( boolean timedOut ) {
+			synchronized ( this ) {
+				if ( ended || cancelled )
+					return;
+				cancelled = true;
+				this.timedOut = timedOut;
+			}
+			logger.warning( timedOut ? "R evaluation timed out after " + timeout + " ms; stopping it"
+					: "Cancelling R evaluation" );
+
+			// Unblock the evaluating thread first; the server process is stopped in the background
+			if ( pc != null )
+				pc.broken = true;
+			conn.close();
+			if ( pc != null && pc.pid > 0 ) {
+				try {
+					getKiller().execute( new Runnable() {
+						@Override
+						public void run() {
+							kill( pc );
+						}
+					} );
+				} catch ( RejectedExecutionException e ) {
+					logger.warning( "Failed to stop Rserve process " + pc.pid + ": watchdog is shut down" );
+				}
+			}
+		}
+
+		synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Creates the exception reported for a cancelled evaluation
+		 */
+		synchronized RserveException toRserveException( RserveException cause ) {
+			RserveException ret = new RserveException( conn, timedOut
+					? "R script evaluation timed out after " + timeout + " ms"
+					: "R script evaluation was cancelled" );
+			ret.initCause( cause );
+			return ret;
+		}
+
+		/**
+		 * Records that the evaluation has completed
+		 */
+		void end() {
+			synchronized ( this ) {
+				ended = true;
+			}
+			if ( timer != null )
+				timer.cancel( false );
+			running.remove( conn, this );
+		}
+	}
+}
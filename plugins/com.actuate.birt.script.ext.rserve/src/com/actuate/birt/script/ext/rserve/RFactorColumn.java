@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import org.rosuda.REngine.REXPInteger;
+
+/**
+ * Column of R factor values. Values are stored as R factor codes, i.e. 1-based indexes into the
+ * levels array; NA values are stored as REXPInteger.NA.
+ */
+public class RFactorColumn extends RColumn {
+	private final int[] codes;
+	private final String[] levels;
+
+	public RFactorColumn( String name, int[] codes, String[] levels ) {
+		super( name, Type.FACTOR, codes.length );
+		this.codes = codes;
+		this.levels = levels;
+		for ( int i = 0; i < codes.length; i++ ) {
+			if ( codes[i] == REXPInteger.NA )
+				setNA( i );
+		}
+	}
+
+	/**
+	 * Gets the 1-based factor code at specified index
+	 */
+	public int getCode( int index ) {
+		return codes[index];
+	}
+
+	/**
+	 * Gets the level of the value at specified index, or null if value is NA
+	 */
+	public String getString( int index ) {
+		int code = codes[index];
+		return code == REXPInteger.NA ? null : levels[code - 1];
+	}
+
+	/**
+	 * Gets the underlying array of factor codes. The returned array is not a copy and must not be modified.
+	 */
+	public int[] getCodes() {
+		return codes;
+	}
+
+	/**
+	 * Gets the factor levels. The returned array is not a copy and must not be modified.
+	 */
+	public String[] getLevels() {
+		return levels;
+	}
+
+	@Override
+	public Object getObject( int index ) {
+		return getString( index );
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import org.rosuda.REngine.REXPInteger;
+
+/**
+ * Column of R integer or logical values. Logical values are stored as 0 (FALSE) or 1 (TRUE).
+ * NA values are stored as REXPInteger.NA.
+ */
+public class RIntColumn extends RColumn {
+	private final int[] values;
+
+	public RIntColumn( String name, Type type, int[] values ) {
+		super( name, type, values.length );
+		this.values = values;
+		for ( int i = 0; i < values.length; i++ ) {
+			if ( values[i] == REXPInteger.NA )
+				setNA( i );
+		}
+	}
+
+	public int getInt( int index ) {
+		return values[index];
+	}
+
+	/**
+	 * Same as getInt; check isNA( index ) first, since NA is returned as REXPInteger.NA
+	 */
+	public int get( int index ) {
+		return values[index];
+	}
+
+	/**
+	 * Gets the underlying array of values. The returned array is not a copy and must not be modified.
+	 */
+	public int[] getValues() {
+		return values;
+	}
+
+	@Override
+	public Object getObject( int index ) {
+		if ( isNA( index ) )
+			return null;
+		if ( getType() == Type.LOGICAL )
+			return values[index] != 0;
+		return values[index];
+	}
+}
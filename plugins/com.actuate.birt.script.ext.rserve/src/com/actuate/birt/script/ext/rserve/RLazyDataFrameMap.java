@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+import com.actuate.birt.script.ext.rserve.RserveConnectionFactory.RConnectionWrapper;
+
+/**
+ * A read-only [name (String) -> value (Array)] map of a data frame, with the same keys, order and values as the
+ * map returned by RScriptEngine for the Map result type, in which each column is converted to Java only when it
+ * is first read. Columns that are never read cost no conversion time and no heap beyond the received data.
+ * <p>
+ * The map either holds the transferred data frame, or, for a remote map, only its column names: the data frame
+ * is then kept in the R workspace and each column is transferred when it is first read. A remote map must be
+ * closed to remove the data frame from the R workspace, and its connection must stay open until then. Once the
+ * connection is closed (or its wrapper is closed, returning it to its pool), columns not yet read can no longer
+ * be read, and the map is never used to run statements on the connection again.
+ * Iterating over entries reads values only when Entry.getValue() is called.
+ */
+public class RLazyDataFrameMap extends AbstractMap<String, Object> implements AutoCloseable {
+	/** Column index that stands for the row names */
+	private static final int ROW_NAMES = -1;
+
+	private final LinkedHashMap<String, Integer> columnIndex = new LinkedHashMap<String, Integer>();
+	private final String[] names;
+	private final boolean factors;
+	private final REXP rowNames;
+	private final RList columns;
+	private final RConnection rconn;
+	private final RConnectionWrapper wrapper;
+	private final long timeout;
+	private final String varName;
+	private final Object[] values;
+	private final boolean[] loaded;
+	private boolean closed;
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	/**
+	 * Creates a map of a transferred data frame
+	 * @param names Keys of the columns
+	 * @param rowNames Row names attribute; null if the map has no row names key
+	 * @param factors See RScriptEngine.ATTR_RESULT_FACTORS
+	 */
+	RLazyDataFrameMap( String[] names, REXP rowNames, RList columns, boolean factors ) {
+		this( names, rowNames != null, rowNames, columns, null, null, null, factors, 0 );
+	}
+
+	/**
+	 * Creates a map of a data frame kept in the R workspace
+	 * @param names Keys of the columns
+	 * @param hasRowNames Whether the map has a row names key
+	 * @param wrapper Wrapper that holds rconn, if the connection was obtained from RserveConnectionFactory; 
+	 *        the map can't be read once the wrapper is closed
+	 * @param varName Name of the R variable that holds the data frame
+	 * @param factors See RScriptEngine.ATTR_RESULT_FACTORS
+	 * @param timeout Time (ms) the transfer of a column may take; 0 for no timeout
+	 */
+	RLazyDataFrameMap( String[] names, boolean hasRowNames, RConnection rconn, RConnectionWrapper wrapper, 
+			String varName, boolean factors, long timeout ) {
+		this( names, hasRowNames, null, null, rconn, wrapper, varName, factors, timeout );
+	}
+
+	private RLazyDataFrameMap( String[] names, boolean hasRowNames, REXP rowNames, RList columns, RConnection rconn,
+			RConnectionWrapper wrapper, String varName, boolean factors, long timeout ) {
+		this.names = names;
+		this.rowNames = rowNames;
+		this.columns = columns;
+		this.rconn = rconn;
+		this.wrapper = wrapper;
+		this.timeout = timeout;
+		this.varName = varName;
+		this.factors = factors;
+		this.values = new Object[names.length + 1];
+		this.loaded = new boolean[names.length + 1];
+
+		// Same key order as the eager map: row names first; a repeated name keeps its first position, and
+		// the last column of that name
+		if ( hasRowNames )
+			columnIndex.put( RScriptEngine.COLUMN_ROW_NAME, ROW_NAMES );
+		for ( int col = 0; col < names.length; col++ )
+			columnIndex.put( names[col], col );
+	}
+
+	/**
+	 * Whether the columns are kept in the R workspace until they are read
+	 */
+	public boolean isRemote() {
+		return rconn != null;
+	}
+
+	/**
+	 * Whether the value of a key has already been converted (and, for a remote map, transferred)
+	 */
+	public synchronized boolean isLoaded( String key ) {
+		Integer col = columnIndex.get( key );
+		return col != null && loaded[slotOf( col )];
+	}
+
+	@Override
+	public int size() {
+		return columnIndex.size();
+	}
+
+	@Override
+	public boolean containsKey( Object key ) {
+		return columnIndex.containsKey( key );
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet( columnIndex.keySet() );
+	}
+
+	/**
+	 * Gets the value of a key, converting it on first use
+	 * @throws RuntimeException if the column can't be converted, or can't be transferred from Rserve
+	 */
+	@Override
+	public synchronized Object get( Object key ) {
+		Integer col = columnIndex.get( key );
+		if ( col == null )
+			return null;
+		int slot = slotOf( col );
+		if ( !loaded[slot] ) {
+			try {
+				values[slot] = load( col );
+			} catch ( RserveException | REXPMismatchException e ) {
+				throw new RuntimeException( e );
+			}
+			loaded[slot] = true;
+		}
+		return values[slot];
+	}
+
+	private Object load( int col ) throws RserveException, REXPMismatchException {
+		if ( rconn == null ) {
+			return col == ROW_NAMES ? RColumnConverter.convertRowNames( rowNames )
+					: RColumnConverter.convert( names[col], columns.at( col ), factors );
+		}
+		if ( closed )
+			throw new IllegalStateException( "Result has been closed" );
+		if ( !isConnectionHeld() )
+			throw new IllegalStateException( "R connection of the result has been closed" );
+		if ( col == ROW_NAMES )
+			return RColumnConverter.convertRowNames( request( "attr(" + varName + ", \"row.names\")", false ) );
+		return RColumnConverter.convert( names[col], request( varName + "[[" + ( col + 1 ) + "]]", false ), factors );
+	}
+
+	/**
+	 * Whether the connection of a remote map is still open, and held by the caller that evaluated the result
+	 */
+	private boolean isConnectionHeld() {
+		return wrapper == null ? rconn.isConnected() : wrapper.getRConnection() == rconn;
+	}
+
+	private REXP request( String script, boolean isVoid ) throws RserveException {
+		return RScriptEngine.request( rconn, script, isVoid, wrapper == null ? null : wrapper.getPooledConnection(),
+				timeout );
+	}
+
+	private int slotOf( int col ) {
+		return col == ROW_NAMES ? names.length : col;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if ( entrySet == null ) {
+			entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final Iterator<String> keys = columnIndex.keySet().iterator();
+					return new Iterator<Map.Entry<String, Object>>() {
+						@Override
+						public boolean hasNext() {
+							return keys.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, Object> next() {
+							return new LazyEntry( keys.next() );
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return columnIndex.size();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Removes the data frame of a remote map from the R workspace. Columns already read remain available. If
+	 * the connection has already been closed, there is nothing to remove.
+	 */
+	@Override
+	public synchronized void close() throws RserveException {
+		if ( rconn != null && !closed ) {
+			closed = true;
+			if ( isConnectionHeld() )
+				request( "rm(" + varName + ")", true );
+		}
+	}
+
+	/**
+	 * An entry whose value is read when it is requested
+	 */
+	private class LazyEntry implements Map.Entry<String, Object> {
+		private final String key;
+
+		LazyEntry( String key ) {
+			this.key = key;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return get( key );
+		}
+
+		@Override
+		public Object setValue( Object value ) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if ( !( o instanceof Map.Entry ) )
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			Object value = getValue();
+			return key.equals( e.getKey() ) && ( value == null ? e.getValue() == null : value.equals( e.getValue() ) );
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = getValue();
+			return key.hashCode() ^ ( value == null ? 0 : value.hashCode() );
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + getValue();
+		}
+	}
+}
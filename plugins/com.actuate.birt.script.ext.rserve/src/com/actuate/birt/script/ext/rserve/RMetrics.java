@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+
+/**
+ * Dispatches measurements of the R script support to registered RMetricsListeners. When no listener
+ * is registered, instrumented code skips its measurements entirely.
+ */
+public class RMetrics {
+	private static final int MAX_LABEL_LENGTH = 80;
+
+	private static List<RMetricsListener> listeners = new CopyOnWriteArrayList<RMetricsListener>();
+	private static volatile boolean enabled;
+
+	public static void addListener( RMetricsListener listener ) {
+		listeners.add( listener );
+		enabled = true;
+	}
+
+	public static void removeListener( RMetricsListener listener ) {
+		listeners.remove( listener );
+		enabled = !listeners.isEmpty();
+	}
+
+	/**
+	 * Checks whether any listener is registered
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets a short label that identifies a script in per-script statistics: the beginning of the script with
+	 * whitespace collapsed, followed by the script's hash code
+	 */
+	public static String scriptLabel( String script ) {
+		StringBuilder sb = new StringBuilder( MAX_LABEL_LENGTH + 10 );
+		boolean space = false;
+		for ( int i = 0; i < script.length() && sb.length() < MAX_LABEL_LENGTH; i++ ) {
+			char c = script.charAt( i );
+			if ( Character.isWhitespace( c ) ) {
+				space = sb.length() > 0;
+			} else {
+				if ( space )
+					sb.append( ' ' );
+				sb.append( c );
+				space = false;
+			}
+		}
+		return sb.append( " #" ).append( Integer.toHexString( script.hashCode() ) ).toString();
+	}
+
+	/**
+	 * Estimates the size of an R value on the wire, without encoding it
+	 */
+	public static long sizeOf( REXP rexp ) {
+		try {
+			if ( rexp instanceof REXPDouble )
+				return 8L * rexp.length();
+			if ( rexp instanceof REXPInteger )
+				return 4L * rexp.length();
+			if ( rexp instanceof REXPLogical || rexp instanceof REXPRaw )
+				return rexp.length();
+			if ( rexp instanceof REXPString ) {
+				long size = 0;
+				for ( String s : rexp.asStrings() )
+					size += s == null ? 2 : s.length() + 1;
+				return size;
+			}
+			if ( rexp != null && rexp.isList() ) {
+				long size = 0;
+				RList list = rexp.asList();
+				for ( int i = 0; i < list.size(); i++ )
+					size += sizeOf( list.at( i ) );
+				return size;
+			}
+		} catch ( REXPMismatchException e ) {
+			// Fall through; size is unknown
+		}
+		return 0;
+	}
+
+	static void connectionAcquired( String endpoint, long nanos ) {
+		for ( RMetricsListener l : listeners )
+			l.connectionAcquired( endpoint, nanos );
+	}
+
+	static void loggedIn( String endpoint, long nanos ) {
+		for ( RMetricsListener l : listeners )
+			l.loggedIn( endpoint, nanos );
+	}
+
+	static void assigned( int variableCount, long bytes, long nanos ) {
+		for ( RMetricsListener l : listeners )
+			l.assigned( variableCount, bytes, nanos );
+	}
+
+	static void evaluated( String script, long nanos, REXP result ) {
+		String label = scriptLabel( script );
+		long bytes = result == null ? 0 : sizeOf( result );
+		for ( RMetricsListener l : listeners )
+			l.evaluated( label, nanos, bytes );
+	}
+
+	static void converted( Class<?> resultClass, long nanos ) {
+		for ( RMetricsListener l : listeners )
+			l.converted( resultClass, nanos );
+	}
+
+	static void failed( int returnCode ) {
+		for ( RMetricsListener l : listeners )
+			l.failed( returnCode );
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics listener that aggregates measurements in histograms and counters, and exposes them as an MXBean.
+ * Per-script histograms are kept for at most MAX_SCRIPTS distinct scripts.
+ */
+public class RMetricsCollector implements RMetricsListener, RMetricsMXBean {
+
+	/** JMX object name under which the plugin registers its collector */
+	public static final String OBJECT_NAME = "com.actuate.birt.script.ext.rserve:type=RMetrics";
+
+	static final int MAX_SCRIPTS = 500;
+
+	private final LatencyHistogram acquire = new LatencyHistogram();
+	private final LatencyHistogram login = new LatencyHistogram();
+	private final LatencyHistogram assign = new LatencyHistogram();
+	private final LatencyHistogram eval = new LatencyHistogram();
+	private final LatencyHistogram conversion = new LatencyHistogram();
+	private final AtomicLong assignedBytes = new AtomicLong();
+	private final AtomicLong resultBytes = new AtomicLong();
+	private final ConcurrentHashMap<Integer, AtomicLong> errors = new ConcurrentHashMap<Integer, AtomicLong>();
+	private final ConcurrentHashMap<String, LatencyHistogram> scripts = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	@Override
+	public void connectionAcquired( String endpoint, long nanos ) {
+		acquire.record( nanos );
+	}
+
+	@Override
+	public void loggedIn( String endpoint, long nanos ) {
+		login.record( nanos );
+	}
+
+	@Override
+	public void assigned( int variableCount, long bytes, long nanos ) {
+		assign.record( nanos );
+		assignedBytes.addAndGet( bytes );
+	}
+
+	@Override
+	public void evaluated( String scriptLabel, long nanos, long bytes ) {
+		eval.record( nanos );
+		resultBytes.addAndGet( bytes );
+
+		LatencyHistogram h = scripts.get( scriptLabel );
+		if ( h == null && scripts.size() < MAX_SCRIPTS ) {
+			h = new LatencyHistogram();
+			LatencyHistogram existing = scripts.putIfAbsent( scriptLabel, h );
+			if ( existing != null )
+				h = existing;
+		}
+		if ( h != null )
+			h.record( nanos );
+	}
+
+	@Override
+	public void converted( Class<?> resultClass, long nanos ) {
+		conversion.record( nanos );
+	}
+
+	@Override
+	public void failed( int returnCode ) {
+		AtomicLong counter = errors.get( returnCode );
+		if ( counter == null ) {
+			counter = new AtomicLong();
+			AtomicLong existing = errors.putIfAbsent( returnCode, counter );
+			if ( existing != null )
+				counter = existing;
+		}
+		counter.incrementAndGet();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getConnectionAcquireLatency() {
+		return acquire.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getLoginLatency() {
+		return login.snapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getAssignLatency() {
+		return assign.snapshot();
+	}
+
+	@Override
+	public long getAssignedBytes() {
+		return assignedBytes.get();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getEvalLatency() {
+		return eval.snapshot();
+	}
+
+	@Override
+	public long getResultBytes() {
+		return resultBytes.get();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getConversionLatency() {
+		return conversion.snapshot();
+	}
+
+	@Override
+	public Map<String, Long> getErrorCounts() {
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for ( Map.Entry<Integer, AtomicLong> e : errors.entrySet() )
+			ret.put( String.valueOf( e.getKey() ), e.getValue().get() );
+		return ret;
+	}
+
+	@Override
+	public Map<String, LatencyHistogram.Snapshot> getScriptLatencies() {
+		Map<String, LatencyHistogram.Snapshot> ret = new TreeMap<String, LatencyHistogram.Snapshot>();
+		for ( Map.Entry<String, LatencyHistogram> e : scripts.entrySet() )
+			ret.put( e.getKey(), e.getValue().snapshot() );
+		return ret;
+	}
+
+	@Override
+	public void reset() {
+		acquire.reset();
+		login.reset();
+		assign.reset();
+		eval.reset();
+		conversion.reset();
+		assignedBytes.set( 0 );
+		resultBytes.set( 0 );
+		errors.clear();
+		scripts.clear();
+	}
+}
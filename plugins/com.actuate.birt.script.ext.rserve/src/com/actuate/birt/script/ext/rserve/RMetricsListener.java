@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+/**
+ * Receives timing and size measurements from the Rserve connection factory and the R script engine.
+ * Register listeners with RMetrics.addListener. Listeners are called on the thread doing the measured work,
+ * so implementations must be thread-safe and fast.
+ */
+public interface RMetricsListener {
+
+	/**
+	 * A connection was obtained from RserveConnectionFactory (either from the pool or newly opened)
+	 * @param endpoint Rserve host[:port] the connection belongs to
+	 * @param nanos Time taken to obtain the connection
+	 */
+	void connectionAcquired( String endpoint, long nanos );
+
+	/**
+	 * A new connection logged in to Rserve
+	 * @param endpoint Rserve host[:port]
+	 * @param nanos Time taken by the login
+	 */
+	void loggedIn( String endpoint, long nanos );
+
+	/**
+	 * Values were assigned to R variables
+	 * @param variableCount Number of variables assigned in the request
+	 * @param bytes Approximate size of the assigned values
+	 * @param nanos Time taken by the assignment
+	 */
+	void assigned( int variableCount, long bytes, long nanos );
+
+	/**
+	 * A script was evaluated
+	 * @param scriptLabel Short label identifying the script (see RMetrics.scriptLabel)
+	 * @param nanos Time taken to evaluate the script and transfer its result
+	 * @param resultBytes Approximate size of the result; 0 if no result was returned
+	 */
+	void evaluated( String scriptLabel, long nanos, long resultBytes );
+
+	/**
+	 * An R result was converted to a Java object
+	 * @param resultClass Requested result class; null for automatic conversion
+	 * @param nanos Time taken by the conversion
+	 */
+	void converted( Class<?> resultClass, long nanos );
+
+	/**
+	 * A request to Rserve failed
+	 * @param returnCode Rserve return code of the failed request
+	 */
+	void failed( int returnCode );
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.Map;
+
+/**
+ * JMX view of the statistics gathered by RMetricsCollector. Durations are in milliseconds.
+ */
+public interface RMetricsMXBean {
+
+	LatencyHistogram.Snapshot getConnectionAcquireLatency();
+
+	LatencyHistogram.Snapshot getLoginLatency();
+
+	LatencyHistogram.Snapshot getAssignLatency();
+
+	/** Approximate total size of values assigned to R, in bytes */
+	long getAssignedBytes();
+
+	LatencyHistogram.Snapshot getEvalLatency();
+
+	/** Approximate total size of evaluation results, in bytes */
+	long getResultBytes();
+
+	LatencyHistogram.Snapshot getConversionLatency();
+
+	/** Number of failed Rserve requests, by Rserve return code */
+	Map<String, Long> getErrorCounts();
+
+	/** Evaluation latency of each script, by script label */
+	Map<String, LatencyHistogram.Snapshot> getScriptLatencies();
+
+	/** Clears all statistics */
+	void reset();
+}
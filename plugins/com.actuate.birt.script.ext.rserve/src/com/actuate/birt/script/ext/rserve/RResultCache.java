@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/**
+ * LRU cache of R evaluation results. Results are stored in their Rserve binary (QAP1) encoding, so each
+ * cache hit returns a new REXP that callers are free to modify. The cache is bounded by number of entries
+ * and total size of the encoded results, and entries expire after a time-to-live.
+ * The cache is disabled (holds no entry) until maxEntries and maxBytes are set to positive values.
+ */
+public class RResultCache {
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+	private int maxEntries;
+	private long maxBytes;
+	private long defaultTtl = 60000L;
+	private long totalBytes;
+
+	/**
+	 * Gets a cached result; returns null if there is no (unexpired) result for the key
+	 */
+	public REXP get( String key ) throws REXPMismatchException {
+		byte[] data;
+		synchronized ( this ) {
+			Entry entry = entries.get( key );
+			if ( entry == null )
+				return null;
+			if ( entry.expires < System.currentTimeMillis() ) {
+				remove( key );
+				return null;
+			}
+			data = entry.data;
+		}
+		REXPFactory factory = new REXPFactory();
+		factory.parseREXP( data, 0 );
+		return factory.getREXP();
+	}
+
+	/**
+	 * Caches a result
+	 * @param ttl Time to live in ms; if not positive, the default time to live is used
+	 */
+	public void put( String key, REXP value, long ttl ) throws REXPMismatchException {
+		if ( !isEnabled() )
+			return;
+		byte[] data = encode( value );
+		long expires = System.currentTimeMillis() + ( ttl > 0 ? ttl : defaultTtl );
+		synchronized ( this ) {
+			if ( data.length > maxBytes )
+				return;
+			remove( key );
+			entries.put( key, new Entry( data, expires ) );
+			totalBytes += data.length;
+			trim();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public synchronized boolean isEnabled() {
+		return maxEntries > 0 && maxBytes > 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the total size of cached results, in bytes
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized void setMaxEntries( int maxEntries ) {
+		this.maxEntries = maxEntries;
+		trim();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes( long maxBytes ) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized long getDefaultTtl() {
+		return defaultTtl;
+	}
+
+	public synchronized void setDefaultTtl( long defaultTtl ) {
+		this.defaultTtl = defaultTtl;
+	}
+
+	/**
+	 * Builds a cache key from the server a script runs on, the script, its inputs, and the requested result class
+	 * @param target Identifies the Rserve server and credentials the script runs with, so that a result is
+	 *        never served to a caller of another server or user
+	 * @param inputs Digests of the input variables, by variable name (see digest)
+	 */
+	static String key( String target, String script, Map<String, String> inputs, Class<?> resultClass ) {
+		MessageDigest md = newDigest();
+		md.update( target.getBytes( StandardCharsets.UTF_8 ) );
+		md.update( (byte) 0 );
+		md.update( script.getBytes( StandardCharsets.UTF_8 ) );
+		md.update( (byte) 0 );
+		md.update( resultClass == null ? new byte[0] : resultClass.getName().getBytes( StandardCharsets.UTF_8 ) );
+		for ( Map.Entry<String, String> input : inputs.entrySet() ) {
+			md.update( (byte) 0 );
+			md.update( input.getKey().getBytes( StandardCharsets.UTF_8 ) );
+			md.update( (byte) '=' );
+			md.update( input.getValue().getBytes( StandardCharsets.UTF_8 ) );
+		}
+		return toHex( md.digest() );
+	}
+
+	/**
+	 * Computes a digest of the binary encoding of an REXP
+	 */
+	static String digest( REXP value ) throws REXPMismatchException {
+		return toHex( newDigest().digest( encode( value ) ) );
+	}
+
+	private static byte[] encode( REXP value ) throws REXPMismatchException {
+		REXPFactory factory = new REXPFactory( value );
+		byte[] data = new byte[factory.getBinaryLength()];
+		factory.getBinaryRepresentation( data, 0 );
+		return data;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance( "SHA-256" );
+		} catch ( NoSuchAlgorithmException e ) {
+			// SHA-256 is required to be supported by every Java platform
+			throw new IllegalStateException( e );
+		}
+	}
+
+	private static String toHex( byte[] bytes ) {
+		StringBuilder sb = new StringBuilder( bytes.length * 2 );
+		for ( byte b : bytes )
+			sb.append( String.format( "%02x", b & 0xff ) );
+		return sb.toString();
+	}
+
+	private void remove( String key ) {
+		Entry old = entries.remove( key );
+		if ( old != null )
+			totalBytes -= old.data.length;
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache is within its limits
+	 */
+	private void trim() {
+		Iterator<Entry> it = entries.values().iterator();
+		while ( it.hasNext() && ( entries.size() > maxEntries || totalBytes > maxBytes ) ) {
+			totalBytes -= it.next().data.length;
+			it.remove();
+		}
+	}
+
+	private static class Entry {
+		final byte[] data;
+		final long expires;
+
+		Entry( byte[] data, long expires ) {
+			this.data = data;
+			this.expires = expires;
+		}
+	}
+}
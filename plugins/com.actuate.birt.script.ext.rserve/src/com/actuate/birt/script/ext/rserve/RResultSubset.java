@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes the part of a data frame result that is needed: a set of columns, filter predicates and a row
+ * limit. The subset is taken on the Rserve side, so that only the selected rows and columns are transferred.
+ * Predicates are combined with AND; as in SQL, a row for which a comparison is NA (e.g. the value is NA) is
+ * left out. The row limit applies after filtering. Results that are not data frames are returned unchanged.
+ * Column names and values are sent as R literals, so they need no quoting by the caller.
+ */
+public class RResultSubset {
+	/** Temporary variable that holds the unfiltered result */
+	private static final String SUBSET_VAR = ".birt.subset";
+
+	/**
+	 * Predicate operators. IN takes a Collection or an array of values; IS_NA and NOT_NA take no value.
+	 */
+	public enum Operator {
+		EQ( "==" ), NE( "!=" ), LT( "<" ), LE( "<=" ), GT( ">" ), GE( ">=" ), IN( "%in%" ), IS_NA( null ),
+		NOT_NA( null );
+
+		private final String symbol;
+
+		Operator( String symbol ) {
+			this.symbol = symbol;
+		}
+	}
+
+	private List<String> columns;
+	private final List<Predicate> predicates = new ArrayList<Predicate>();
+	private int limit = -1;
+
+	/**
+	 * Selects the columns to return, in the specified order. By default, all columns are returned.
+	 * @return this subset
+	 */
+	public RResultSubset select( String... columns ) {
+		return select( Arrays.asList( columns ) );
+	}
+
+	/**
+	 * @see #select(String...)
+	 */
+	public RResultSubset select( Collection<String> columns ) {
+		for ( String column : columns ) {
+			if ( column == null )
+				throw new IllegalArgumentException( "column is null" );
+		}
+		this.columns = new ArrayList<String>( columns );
+		return this;
+	}
+
+	/**
+	 * Adds a predicate that rows must satisfy
+	 * @param value Value to compare the column with: a String, Character, Number or Boolean, or a Collection
+	 *        or array of such values for IN
+	 * @return this subset
+	 */
+	public RResultSubset where( String column, Operator op, Object value ) {
+		if ( column == null )
+			throw new IllegalArgumentException( "column is null" );
+		if ( op == null )
+			throw new IllegalArgumentException( "op is null" );
+		String literal = null;
+		if ( op == Operator.IN ) {
+			literal = vectorLiteral( value );
+		} else if ( op.symbol != null ) {
+			if ( value == null )
+				throw new IllegalArgumentException( "Operator " + op + " requires a value; use IS_NA to match NA" );
+			literal = literal( value );
+		}
+		predicates.add( new Predicate( column, op, literal ) );
+		return this;
+	}
+
+	/**
+	 * Adds a predicate that takes no value (IS_NA or NOT_NA)
+	 * @return this subset
+	 */
+	public RResultSubset where( String column, Operator op ) {
+		return where( column, op, null );
+	}
+
+	/**
+	 * Limits the number of returned rows
+	 * @param rows Maximum number of rows; negative for no limit
+	 * @return this subset
+	 */
+	public RResultSubset limit( int rows ) {
+		this.limit = rows;
+		return this;
+	}
+
+	/**
+	 * Gets the selected columns; null if all columns are returned
+	 */
+	public List<String> getColumns() {
+		return columns == null ? null : Collections.unmodifiableList( columns );
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Wraps a script so that it returns the subset of its result. The script is evaluated in the global
+	 * environment, as it would be without the subset.
+	 */
+	String wrap( String script ) {
+		StringBuilder sb = new StringBuilder();
+		sb.append( SUBSET_VAR ).append( " <- {\n" ).append( script ).append( "\n}\n" );
+		sb.append( "local({\n" );
+		sb.append( "  d <- get(\"" ).append( SUBSET_VAR ).append( "\", envir = globalenv())\n" );
+		sb.append( "  rm(\"" ).append( SUBSET_VAR ).append( "\", envir = globalenv())\n" );
+		sb.append( "  if (is.data.frame(d)) {\n" );
+
+		// Report unknown columns rather than silently returning NULL columns
+		Set<String> referenced = new LinkedHashSet<String>();
+		if ( columns != null )
+			referenced.addAll( columns );
+		for ( Predicate p : predicates )
+			referenced.add( p.column );
+		if ( !referenced.isEmpty() ) {
+			sb.append( "    unknown <- setdiff(" ).append( vectorLiteral( referenced ) ).append( ", names(d))\n" );
+			sb.append( "    if (length(unknown) > 0) stop(\"Unknown column(s): \", paste(unknown, collapse = \", \"))\n" );
+		}
+
+		String rows = "";
+		if ( !predicates.isEmpty() ) {
+			sb.append( "    rows <- which(" );
+			for ( int i = 0; i < predicates.size(); i++ ) {
+				if ( i > 0 )
+					sb.append( " & " );
+				sb.append( predicates.get( i ).toR() );
+			}
+			sb.append( ")\n" );
+			if ( limit >= 0 )
+				sb.append( "    rows <- head(rows, " ).append( limit ).append( ")\n" );
+			rows = "rows";
+		} else if ( limit >= 0 ) {
+			rows = "seq_len(min(" + limit + ", nrow(d)))";
+		}
+		if ( !rows.isEmpty() || columns != null ) {
+			sb.append( "    d <- d[" ).append( rows ).append( ", " );
+			if ( columns != null )
+				sb.append( vectorLiteral( columns ) );
+			sb.append( ", drop = FALSE]\n" );
+		}
+		sb.append( "  }\n" );
+		sb.append( "  d\n" );
+		sb.append( "})" );
+		return sb.toString();
+	}
+
+	/**
+	 * Converts a value to an R literal
+	 */
+	static String literal( Object value ) {
+		if ( value == null )
+			return "NA";
+		if ( value instanceof String || value instanceof Character )
+			return quote( value.toString() );
+		if ( value instanceof Boolean )
+			return (Boolean) value ? "TRUE" : "FALSE";
+		if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+				|| value instanceof BigInteger || value instanceof BigDecimal )
+			return "(" + value.toString() + ")";
+		if ( value instanceof Number ) {
+			// Doubles, and other Number types whose toString() may not be a valid R literal
+			double d = ( (Number) value ).doubleValue();
+			if ( Double.isNaN( d ) )
+				return "NaN";
+			if ( Double.isInfinite( d ) )
+				return d > 0 ? "Inf" : "(-Inf)";
+			return "(" + Double.toString( d ) + ")";
+		}
+		throw new IllegalArgumentException( "Unsupported value type: " + value.getClass().getName() );
+	}
+
+	/**
+	 * Converts a Collection or array of values to an R vector literal
+	 */
+	private static String vectorLiteral( Object values ) {
+		Collection<?> collection;
+		if ( values instanceof Collection ) {
+			collection = (Collection<?>) values;
+		} else if ( values != null && values.getClass().isArray() ) {
+			int len = Array.getLength( values );
+			List<Object> list = new ArrayList<Object>( len );
+			for ( int i = 0; i < len; i++ )
+				list.add( Array.get( values, i ) );
+			collection = list;
+		} else {
+			throw new IllegalArgumentException( "Operator IN requires a Collection or an array of values" );
+		}
+		StringBuilder sb = new StringBuilder( "c(" );
+		boolean first = true;
+		for ( Object value : collection ) {
+			if ( !first )
+				sb.append( ", " );
+			sb.append( literal( value ) );
+			first = false;
+		}
+		return sb.append( ')' ).toString();
+	}
+
+	/**
+	 * Quotes a string as an R string literal. Quotes, backslashes and control characters are escaped, so the
+	 * literal can't end early; other characters are kept as is.
+	 * @throws IllegalArgumentException if the string contains a NUL character, which R strings can't hold
+	 */
+	static String quote( String s ) {
+		StringBuilder sb = new StringBuilder( s.length() + 2 );
+		sb.append( '"' );
+		for ( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			switch ( c ) {
+			case '"':
+				sb.append( "\\\"" );
+				break;
+			case '\\':
+				sb.append( "\\\\" );
+				break;
+			case '\n':
+				sb.append( "\\n" );
+				break;
+			case '\r':
+				sb.append( "\\r" );
+				break;
+			case '\t':
+				sb.append( "\\t" );
+				break;
+			case 0:
+				throw new IllegalArgumentException( "R strings can't contain NUL characters" );
+			default:
+				if ( c < 0x20 || c == 0x7f )
+					sb.append( String.format( "\\x%02x", (int) c ) );
+				else
+					sb.append( c );
+			}
+		}
+		return sb.append( '"' ).toString();
+	}
+
+	private static class Predicate {
+		final String column;
+		final Operator op;
+		final String literal;
+
+		Predicate( String column, Operator op, String literal ) {
+			this.column = column;
+			this.op = op;
+			this.literal = literal;
+		}
+
+		String toR() {
+			String value = "d[[" + quote( column ) + "]]";
+			switch ( op ) {
+			case IS_NA:
+				return "is.na(" + value + ")";
+			case NOT_NA:
+				return "!is.na(" + value + ")";
+			case IN:
+				// %in% is never NA; NA values match only if NA is listed
+				return "(" + value + " %in% " + literal + ")";
+			default:
+				return "(" + value + " " + op.symbol + " " + literal + ")";
+			}
+		}
+	}
+}
@@ -8,15 +8,37 @@ package com.actuate.birt.script.ext.rserve;
 import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.script.AbstractScriptEngine;
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
@@ -24,6 +46,8 @@ import javax.script.SimpleBindings;
 
 import org.rosuda.REngine.REXP;
 import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPFactor;
+import org.rosuda.REngine.REXPGenericVector;
 import org.rosuda.REngine.REXPInteger;
 import org.rosuda.REngine.REXPList;
 import org.rosuda.REngine.REXPMismatchException;
@@ -41,7 +65,7 @@ import com.actuate.birt.script.ext.rserve.RserveConnectionFactory.RConnectionWra
 /**
  * Implements a Rserve-based script engine that runs R scripts
  */
-public class RScriptEngine extends AbstractScriptEngine {
+public class RScriptEngine extends AbstractScriptEngine implements Compilable {
 	
 	// Predefined attributes required to evaluate a script
 
@@ -51,15 +75,253 @@ public class RScriptEngine extends AbstractScriptEngine {
 	/** Class of evaluation result */
 	public static String BINDING_RESULT_CLASS = "#result.class";
 	
+	/** Number of rows per chunk when result class is RChunkedResult */
+	public static String ATTR_STREAM_CHUNK_SIZE = "#stream.chunk.size";
+	
+	/** If Boolean.TRUE, the script is pure: its result only depends on its text and on the variables assigned
+	 *  by the engine (put/putAll), and may be cached. A script that reads variables it or another script
+	 *  created in the workspace must not be marked cacheable. Only results of connections obtained from 
+	 *  RserveConnectionFactory outside of a shared session are cached */
+	public static String ATTR_RESULT_CACHEABLE = "#result.cacheable";
+	
+	/** Time to live (ms) of a cached result; optional */
+	public static String ATTR_RESULT_CACHE_TTL = "#result.cache.ttl";
+	
+	/** If set, data frames (Maps of column arrays) with more rows than this value are uploaded in chunks 
+	 *  of this many rows, without building the whole data frame in memory; see RDataFrameUploader */
+	public static String ATTR_UPLOAD_CHUNK_SIZE = "#upload.chunk.size";
+	
+	/** Buffer to copy the result to when result class is DoubleBuffer or IntBuffer; optional. If not set,
+	 *  a heap buffer that wraps the transferred bytes is returned */
+	public static String ATTR_RESULT_BUFFER = "#result.buffer";
+	
+	/** If Boolean.TRUE, factor and character columns of data frames returned as Map are decoded to 
+	 *  RFactorColumn (integer codes and shared levels) instead of String[] */
+	public static String ATTR_RESULT_FACTORS = "#result.factors";
+	
+	/** If Boolean.TRUE, columns of large data frames returned as Map are converted on several cores */
+	public static String ATTR_RESULT_PARALLEL = "#result.parallel";
+	
+	/** Number of values to decode (in factor columns, or in character columns with ATTR_RESULT_FACTORS) at 
+	 *  or above which a data frame is converted on several cores when ATTR_RESULT_PARALLEL is set; 
+	 *  default 1048576. Smaller data frames are converted sequentially */
+	public static String ATTR_RESULT_PARALLEL_THRESHOLD = "#result.parallel.threshold";
+	
+	/** If Boolean.TRUE, data frames returned as Map are returned as RLazyDataFrameMap, whose columns are 
+	 *  converted to Java when they are first read */
+	public static String ATTR_RESULT_LAZY = "#result.lazy";
+	
+	/** If Boolean.TRUE, data frames returned as Map are kept on the Rserve side, and each column is 
+	 *  transferred when it is first read (see evalAsLazyMap); the returned RLazyDataFrameMap must be closed */
+	public static String ATTR_RESULT_LAZY_REMOTE = "#result.lazy.remote";
+	
+	/** RResultSubset (columns, filter predicates, row limit) applied on the Rserve side to data frames 
+	 *  returned as Map, RDataFrame or RChunkedResult, so that only the subset is transferred; optional */
+	public static String ATTR_RESULT_SUBSET = "#result.subset";
+	
+	/** If Boolean.TRUE, string vectors assigned to R that contain many repeated values (at most one distinct
+	 *  value per two elements) are sent as factors, which are smaller on the wire and in R */
+	public static String ATTR_ASSIGN_FACTORS = "#assign.factors";
+	
+	/** If Boolean.TRUE, scripts evaluated with result class void are queued, and sent to Rserve as a single
+	 *  batch before the next value-returning evaluation or assignment, on flush(), or when the queue is full.
+	 *  An error in a queued statement is reported by the evaluation that flushes the queue. Statements are 
+	 *  queued on the RConnectionWrapper of the context; they are discarded if it is closed first, which is 
+	 *  reported by flush(). Scripts run on other connections are not queued */
+	public static String ATTR_PIPELINE_VOID = "#pipeline.void";
+	
+	/** Maximum number of queued void statements when ATTR_PIPELINE_VOID is set; default 100 */
+	public static String ATTR_PIPELINE_MAX_STATEMENTS = "#pipeline.max.statements";
+	
+	/** Maximum time (ms) each R request of an evaluation may take; optional. An evaluation whose request 
+	 *  exceeds it is cancelled (see cancel) and fails with a ScriptException */
+	public static String ATTR_EVAL_TIMEOUT = "#eval.timeout";
+	
+	private static final int DEFAULT_STREAM_CHUNK_SIZE = 10000;
+	private static final String STREAM_VAR_PREFIX = ".birt.stream.";
+	private static final String LAZY_VAR_PREFIX = ".birt.lazy.";
+	private static AtomicInteger streamCounter = new AtomicInteger();
+	private static final String BATCH_VAR = ".birt.batch";
+	private static final String PIPELINE_VAR = ".birt.pipeline";
+	private static final String PIPELINE_INDEX_VAR = ".birt.pipeline.at";
+	private static final int DEFAULT_PIPELINE_MAX_STATEMENTS = 100;
+	
+	/**
+	 * Runs the queued void statements in order, recording the index of the running statement so that an
+	 * error can be attributed to it. Statements are parsed one at a time, so a syntax error is attributed
+	 * too. The statements are read into a local variable first, in case a statement clears the workspace.
+	 */
+	private static final String PIPELINE_SCRIPT = "local({\n"
+			+ "  s <- get(\"" + PIPELINE_VAR + "\", envir = globalenv())\n"
+			+ "  rm(\"" + PIPELINE_VAR + "\", envir = globalenv())\n"
+			+ "  for (i in seq_along(s)) {\n"
+			+ "    assign(\"" + PIPELINE_INDEX_VAR + "\", i, envir = globalenv())\n"
+			+ "    eval(parse(text = s[[i]]), envir = globalenv())\n"
+			+ "  }\n"
+			+ "  rm(\"" + PIPELINE_INDEX_VAR + "\", envir = globalenv())\n"
+			+ "})";
+	
 	private static final String DEFAULT_COLUMN_NAME = "column_";
-	private static final String COLUMN_ROW_NAME = "row_name";
+	static final String COLUMN_ROW_NAME = "row_name";
 	
 	private static Logger logger = Logger.getLogger( RScriptEngine.class.getName() );
 	
 	protected RScriptEngineFactory factory;
 	
+	private static Executor defaultExecutor;
+	private Executor executor;
+	
+	/** Locks that let one evaluation at a time run on a connection; a lock rather than a monitor, so that
+	 *  virtual threads blocked on Rserve are not pinned to their carrier thread */
+	private static final Map<RConnection, ReentrantLock> connectionLocks = 
+			Collections.synchronizedMap( new WeakHashMap<RConnection, ReentrantLock>() );
+	
+	private static RResultCache resultCache = new RResultCache();
+	
+	/** Digests of the variables assigned by this engine, used to build result cache keys; empty if unknown */
+	private final SortedMap<String, String> inputDigests = 
+			Collections.synchronizedSortedMap( new TreeMap<String, String>() );
+	
+	/** Context created with the engine, restored by reset() */
+	private final ScriptContext defaultContext;
+	
 	public RScriptEngine(RScriptEngineFactory factory ) {
+		super( createEngineBindings() );
 		this.factory = factory;
+		this.defaultContext = this.context;
+	}
+	
+	/**
+	 * Creates engine scope bindings backed by a synchronized map (unlike the HashMap-based bindings of 
+	 * SimpleScriptContext), so that an asynchronous evaluation (see evalAsync) can read them while the calling 
+	 * thread updates them. The engine itself is not thread-safe (see the THREADING parameter of 
+	 * RScriptEngineFactory).
+	 */
+	private static Bindings createEngineBindings() {
+		return new SimpleBindings( Collections.synchronizedMap( new HashMap<String, Object>() ) );
+	}
+	
+	/**
+	 * Prepares the engine for reuse: restores the context it was created with, and removes local ('#') 
+	 * attributes, including the R connection, from it. Void statements still queued in pipelined mode stay 
+	 * queued on their connection, and are discarded when it is closed.
+	 */
+	public void reset() {
+		inputDigests.clear();
+		
+		this.context = defaultContext;
+		Bindings bindings = defaultContext.getBindings( ScriptContext.ENGINE_SCOPE );
+		// Copy keys first; the key set of synchronized bindings can't be iterated safely
+		for ( String key : new ArrayList<String>( bindings.keySet() ) ) {
+			if ( !key.isEmpty() && key.charAt(0) == '#' )
+				bindings.remove( key );
+		}
+	}
+	
+	/**
+	 * Sets the executor used to run asynchronous evaluations. If not set, a shared executor is used; it runs
+	 * each evaluation in a virtual thread on JVMs that support them, or in a pooled daemon thread otherwise.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Evaluates a script asynchronously using the engine's default context
+	 * @see #evalAsync(String, ScriptContext)
+	 */
+	public Future<Object> evalAsync(String script) {
+		return evalAsync(script, getContext());
+	}
+	
+	/**
+	 * Evaluates a script asynchronously. The returned Future completes with the same result, or fails with 
+	 * the same ScriptException, as eval(script, context). Evaluations on different connections run 
+	 * concurrently; evaluations that share a connection, whether synchronous or asynchronous, are run one at 
+	 * a time by that connection. The context should not be modified until the evaluation has completed.
+	 */
+	public Future<Object> evalAsync(final String script, final ScriptContext context) {
+		FutureTask<Object> task = new FutureTask<Object>( new Callable<Object>() {
+			@Override
+			public Object call() throws ScriptException {
+				return eval( script, context );
+			}
+		}) {
+			private volatile Thread runner;
+			
+			@Override
+			public void run() {
+				runner = Thread.currentThread();
+				super.run();
+			}
+			
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				// A thread blocked on Rserve does not respond to interrupts; stop the evaluation instead
+				boolean ret = super.cancel( mayInterruptIfRunning );
+				Thread thread = runner;
+				if ( ret && mayInterruptIfRunning && thread != null )
+					REvalWatchdog.cancel( getRConnection(context), thread );
+				return ret;
+			}
+		};
+		(executor != null ? executor : getDefaultExecutor()).execute( task );
+		return task;
+	}
+	
+	/**
+	 * Gets the cache of results of scripts marked with ATTR_RESULT_CACHEABLE. The cache is shared by all
+	 * engines, with results keyed by Rserve server and user, and is disabled until its size limits are set.
+	 * Results of scripts run in a shared session are not cached.
+	 */
+	public static RResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	private static synchronized Executor getDefaultExecutor() {
+		if ( defaultExecutor == null ) {
+			try {
+				// Use virtual threads if available (Java 21 and later)
+				defaultExecutor = (Executor) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+			} catch ( ReflectiveOperationException e ) {
+				defaultExecutor = Executors.newCachedThreadPool( new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread( r, "R script engine async-" + count.incrementAndGet() );
+						t.setDaemon( true );
+						return t;
+					}
+				});
+			}
+		}
+		return defaultExecutor;
+	}
+	
+	/**
+	 * Stops the shared executor of asynchronous evaluations; it is created again if needed
+	 */
+	static synchronized void shutdownExecutor() {
+		if ( defaultExecutor instanceof ExecutorService )
+			((ExecutorService) defaultExecutor).shutdown();
+		defaultExecutor = null;
+	}
+	
+	/**
+	 * Gets the lock that serializes evaluations on a connection. An evaluation may take several requests 
+	 * (e.g. flushing queued statements, or getting the error message), which must not be interleaved with 
+	 * those of another evaluation.
+	 */
+	private static ReentrantLock lockOf(RConnection conn) {
+		synchronized ( connectionLocks ) {
+			ReentrantLock lock = connectionLocks.get( conn );
+			if ( lock == null ) {
+				lock = new ReentrantLock();
+				connectionLocks.put( conn, lock );
+			}
+			return lock;
+		}
 	}
 	
 	@Override
@@ -70,19 +332,115 @@ public class RScriptEngine extends AbstractScriptEngine {
 			throw new ScriptException("Failed to get R connection");
 		
 		script = fixScriptLineBreak(script);
+		ReentrantLock lock = lockOf( conn );
+		lock.lock();
+		try {
+			return evalScript(script, conn, context);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Runs a compiled script. The parsed script is installed on the connection the first time it is used there.
+	 */
+	Object evalCompiled(RCompiledScript compiled, ScriptContext context) throws ScriptException {
+		RConnection conn = getRConnection(context);
+		if ( conn == null )
+			throw new ScriptException("Failed to get R connection");
 		
+		ReentrantLock lock = lockOf( conn );
+		lock.lock();
+		try {
+			flush( context, conn );
+			try {
+				return evalScript(install(compiled, conn, context), conn, context);
+			} catch (ScriptException e) {
+				if ( !RCompiledScript.isNotInstalledError( e.getMessage() ) )
+					throw e;
+				// The workspace was cleared since the script was installed; install it again
+				return evalScript(install(compiled, conn, context), conn, context);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private String install(RCompiledScript compiled, RConnection conn, ScriptContext context) throws ScriptException {
+		try {
+			return compiled.install( this, conn, context );
+		} catch (RserveException rse)  {
+			throw handleRserveException(conn, rse);
+		}
+	}
+	
+	private Object evalScript(String script, RConnection conn, ScriptContext context) throws ScriptException {
 		// Get desired eval result class; this is optional
 		Class<?> resultClass = (Class<?>)context.getAttribute(BINDING_RESULT_CLASS);
+		RConnectionWrapper wrapper = getConnectionWrapper(context);
+		if ( resultClass == void.class && Boolean.TRUE.equals(context.getAttribute(ATTR_PIPELINE_VOID)) 
+				&& wrapper != null && wrapper.getRConnection() == conn ) {
+			Object max = context.getAttribute(ATTR_PIPELINE_MAX_STATEMENTS);
+			int maxStatements = max == null ? DEFAULT_PIPELINE_MAX_STATEMENTS : ((Number) max).intValue();
+			if ( wrapper.enqueue( script ) >= maxStatements )
+				flush( context, conn );
+			return null;
+		}
+		
+		flush( context, conn );
+		return evalResult( script, resultClass, conn, context );
+	}
+	
+	/**
+	 * Cancels the evaluation running on the connection of the engine's default context
+	 * @see #cancel(ScriptContext)
+	 */
+	public boolean cancel() {
+		return cancel( getContext() );
+	}
+	
+	/**
+	 * Cancels the evaluation running on the connection of a script context. The Rserve process running the
+	 * evaluation is stopped, the evaluation fails with a ScriptException, and the connection is closed; 
+	 * a pooled connection is discarded rather than returned to the pool. Stopping the server process requires 
+	 * a connection obtained from RserveConnectionFactory; other connections are only closed.
+	 * @return Whether an evaluation was running
+	 */
+	public boolean cancel(ScriptContext context) {
+		return REvalWatchdog.cancel( getRConnection(context), null );
+	}
+	
+	private Object evalResult(String script, Class<?> resultClass, RConnection conn, ScriptContext context) 
+			throws ScriptException {
+		Object subset = context.getAttribute(ATTR_RESULT_SUBSET);
+		if ( subset instanceof RResultSubset && isDataFrameType(resultClass) )
+			script = ((RResultSubset) subset).wrap(script);
 		try {
-			if ( resultClass == null ) {
-				// Determine best return type based on R result
-				return evalAutoType( script, conn);
-			} else if ( resultClass == void.class ) {
+			if ( resultClass == void.class ) {
 				// No return result expected
-				conn.voidEval( script );
+				voidEval( conn, script, context );
 				return null;
+			} else if ( resultClass == RChunkedResult.class ) {
+				// Keep result on server side and transfer it in chunks
+				Object chunkSize = context.getAttribute(ATTR_STREAM_CHUNK_SIZE);
+				return evalStreaming(script, chunkSize == null ? DEFAULT_STREAM_CHUNK_SIZE
+						: ((Number) chunkSize).intValue(), conn, context);
+			} else if ( resultClass != null && Map.class.isAssignableFrom(resultClass) 
+					&& Boolean.TRUE.equals( context.getAttribute(ATTR_RESULT_LAZY_REMOTE) ) ) {
+				// Keep result on server side and transfer columns on demand
+				return evalAsLazyMap(script, Boolean.TRUE.equals( context.getAttribute(ATTR_RESULT_FACTORS) ), 
+						conn, context);
+			} else if ( resultClass == DoubleBuffer.class || resultClass == IntBuffer.class ) {
+				// Transfer numeric payload as packed bytes, and decode it into a buffer
+				REXP result = evalREXP(packNumeric(script, resultClass), resultClass, conn, context);
+				Buffer dest = (Buffer) context.getAttribute(ATTR_RESULT_BUFFER);
+				if ( dest == null )
+					return convert(result, resultClass, context);
+				return resultClass == DoubleBuffer.class ? RVectorConverter.to_doubleBuffer( result, (DoubleBuffer) dest )
+						: RVectorConverter.to_intBuffer( result, (IntBuffer) dest );
 			} else {
-				return evalAsType(script, resultClass, conn);
+				REXP result = evalREXP(script, resultClass, conn, context);
+				return convert(result, resultClass, context);
 			}
 		} catch (RserveException rse)  {
 			throw handleRserveException(conn, rse);
@@ -91,11 +449,230 @@ public class RScriptEngine extends AbstractScriptEngine {
 		}
 	}
 	
+	/**
+	 * Sends void statements queued in pipelined mode (see ATTR_PIPELINE_VOID) to Rserve
+	 * @throws ScriptException if a queued statement fails; statements queued after it are not run. Also 
+	 *         thrown if queued statements were discarded because the connection was closed
+	 */
+	public void flush() throws ScriptException {
+		ScriptContext context = getContext();
+		RConnectionWrapper wrapper = getConnectionWrapper(context);
+		if ( wrapper == null )
+			return;
+		RConnection conn = wrapper.getRConnection();
+		if ( conn == null ) {
+			int discarded = wrapper.takeDiscarded();
+			if ( discarded > 0 )
+				throw new ScriptException( discarded + " queued R statement(s) were discarded when the connection "
+						+ "was closed" );
+			return;
+		}
+		ReentrantLock lock = lockOf( conn );
+		lock.lock();
+		try {
+			flush( context, conn );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void flush(RConnection conn) throws ScriptException {
+		flush( getContext(), conn );
+	}
+	
+	/**
+	 * Runs the statements queued on the connection wrapper of a context, if conn is its connection; statements
+	 * are never run on another connection. Statements are sent in a single character vector, and run by 
+	 * PIPELINE_SCRIPT: two round trips regardless of their number.
+	 */
+	private void flush(ScriptContext context, RConnection conn) throws ScriptException {
+		RConnectionWrapper wrapper = getConnectionWrapper(context);
+		if ( wrapper == null || wrapper.getRConnection() != conn )
+			return;
+		String[] statements = wrapper.dequeueAll();
+		if ( statements.length == 0 )
+			return;
+		
+		try {
+			if ( statements.length == 1 ) {
+				voidEval( conn, statements[0], context );
+				return;
+			}
+			conn.assign( PIPELINE_VAR, new REXPString( statements ) );
+			voidEval( conn, PIPELINE_SCRIPT, context );
+		} catch (RserveException rse) {
+			if ( statements.length == 1 )
+				throw handleRserveException( conn, rse );
+			ScriptException se = handleRserveException( conn, rse );
+			
+			// Find out which statement failed
+			int index = 0;
+			try {
+				index = conn.eval( "if (exists(\"" + PIPELINE_INDEX_VAR + "\", envir = globalenv())) get(\"" 
+						+ PIPELINE_INDEX_VAR + "\", envir = globalenv()) else 0L" ).asInteger();
+				conn.voidEval( "suppressWarnings(rm(\"" + PIPELINE_INDEX_VAR + "\", \"" + PIPELINE_VAR 
+						+ "\", envir = globalenv()))" );
+			} catch ( RserveException | REXPMismatchException e ) {
+				// Ignore error; report the statement as unknown
+			}
+			if ( index < 1 || index > statements.length )
+				throw se;
+			ScriptException ret = new ScriptException( "Error in pipelined statement " + index + " of " 
+					+ statements.length + ": " + se.getMessage() + "\nStatement: " + statements[index - 1], 
+					null, index );
+			ret.initCause( rse );
+			throw ret;
+		}
+	}
+	
+	/**
+	 * Evaluates script, or gets its result from the result cache if the script is cacheable. Results are only
+	 * cached for connections obtained from RserveConnectionFactory, whose server and user are known, and that
+	 * don't share a session.
+	 */
+	private REXP evalREXP(String script, Class<?> resultClass, RConnection conn, ScriptContext context) 
+			throws RserveException, REXPMismatchException, ScriptException {
+		if ( !Boolean.TRUE.equals(context.getAttribute(ATTR_RESULT_CACHEABLE)) || !resultCache.isEnabled() )
+			return eval( conn, script, context );
+		
+		long ttl = getCacheTtl(context);
+		Object connObj = context.getAttribute( ATTR_R_CONNECTION );
+		String target = connObj instanceof RConnectionWrapper ? ((RConnectionWrapper) connObj).getTarget() : null;
+		if ( target == null )
+			return eval( conn, script, context );
+		
+		Map<String, String> inputs;
+		synchronized ( inputDigests ) {
+			if ( inputDigests.containsValue( "" ) )
+				// Some input was assigned while the cache was disabled
+				return eval( conn, script, context );
+			inputs = new TreeMap<String, String>( inputDigests );
+		}
+		
+		String key = RResultCache.key(target, script, inputs, resultClass);
+		REXP result = resultCache.get( key );
+		if ( result == null ) {
+			result = eval( conn, script, context );
+			try {
+				resultCache.put( key, result, ttl );
+			} catch ( REXPMismatchException e ) {
+				// The result can't be encoded; it is returned without being cached
+				logger.log( Level.FINE, "Failed to cache R result", e );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the time to live of cached results; 0 for the cache's default
+	 */
+	private static long getCacheTtl(ScriptContext context) throws ScriptException {
+		Object ttl = context.getAttribute(ATTR_RESULT_CACHE_TTL);
+		if ( ttl == null )
+			return 0;
+		try {
+			return ttl instanceof Number ? ((Number) ttl).longValue() : Long.parseLong( ttl.toString().trim() );
+		} catch ( NumberFormatException e ) {
+			throw new ScriptException( "Invalid value of " + ATTR_RESULT_CACHE_TTL + ": " + ttl );
+		}
+	}
+	
+	/**
+	 * Evaluates a script
+	 * @see #request(RConnection, String, boolean, ScriptContext)
+	 */
+	private REXP eval(RConnection conn, String script, ScriptContext context) throws RserveException {
+		return request( conn, script, false, context );
+	}
+	
+	void voidEval(RConnection conn, String script, ScriptContext context) throws RserveException {
+		request( conn, script, true, context );
+	}
+	
+	/**
+	 * Sends an evaluation request to Rserve; every evaluation goes through this method. The request is 
+	 * registered with REvalWatchdog, so that it can be cancelled, and is stopped if it takes longer than 
+	 * ATTR_EVAL_TIMEOUT of context. Its evaluation time is reported to metrics listeners; the time covers the
+	 * computation on the server as well as the transfer of the result. The request holds the lock of the
+	 * connection (see lockOf); public entry points that send several requests hold it for all of them.
+	 * @return Result; null for a void request
+	 */
+	private REXP request(RConnection conn, String script, boolean isVoid, ScriptContext context) 
+			throws RserveException {
+		return request( conn, script, isVoid, getPooledConnection(context), getEvalTimeout(context) );
+	}
+	
+	/**
+	 * Sends an evaluation request to Rserve, as request(RConnection, String, boolean, ScriptContext) does. Used 
+	 * by results that send requests after their evaluation, such as RChunkedResult.
+	 * @param pc Pooled connection that conn belongs to; null if unknown
+	 * @param timeout See ATTR_EVAL_TIMEOUT; 0 for no timeout
+	 */
+	static REXP request(RConnection conn, String script, boolean isVoid, RConnectionPool.PooledConnection pc, 
+			long timeout) throws RserveException {
+		ReentrantLock lock = lockOf( conn );
+		lock.lock();
+		try {
+			REvalWatchdog.Evaluation evaluation = REvalWatchdog.start( conn, pc, timeout );
+			try {
+				boolean metrics = RMetrics.isEnabled();
+				long start = metrics ? System.nanoTime() : 0;
+				REXP result = null;
+				if ( isVoid )
+					conn.voidEval( script );
+				else
+					result = conn.eval( script );
+				if ( metrics )
+					RMetrics.evaluated( script, System.nanoTime() - start, result );
+				return result;
+			} catch ( RserveException e ) {
+				if ( evaluation.isCancelled() )
+					throw evaluation.toRserveException( e );
+				throw e;
+			} finally {
+				evaluation.end();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Converts an evaluation result to the requested type (or to the best matching type if resultClass
+	 * is null), and reports the conversion time to metrics listeners
+	 */
+	private Object convert(REXP result, Class<?> resultClass, ScriptContext context) 
+			throws REXPMismatchException, ScriptException {
+		long start = RMetrics.isEnabled() ? System.nanoTime() : 0;
+		Object ret = resultClass == null ? toAutoType(result) : toType(result, resultClass, context);
+		if ( start != 0 )
+			RMetrics.converted( resultClass, System.nanoTime() - start );
+		return ret;
+	}
+	
+	/**
+	 * Records the digest of a variable assigned to R, for use in result cache keys
+	 */
+	private void recordInput(String var, REXP value) {
+		String digest = "";
+		if ( resultCache.isEnabled() ) {
+			try {
+				digest = RResultCache.digest( value );
+			} catch ( REXPMismatchException e ) {
+				// The value can't be encoded; results that depend on it are not cached
+				logger.log( Level.FINE, "Failed to digest R input " + var, e );
+			}
+		}
+		inputDigests.put( var, digest );
+	}
+	
 	/**
 	 * Create a ScriptException that best describe the root cause of an RserveException
 	 */
 	private ScriptException handleRserveException(RConnection conn, RserveException rse) {
 		String errMsg = null;
+		if ( RMetrics.isEnabled() )
+			RMetrics.failed( rse.getRequestReturnCode() );
 		
 		// For generic error 127, we can follow up with a R function call geterrmessage()
 		// to find out root cause
@@ -112,11 +689,48 @@ public class RScriptEngine extends AbstractScriptEngine {
 			// Other types of error (such as parser error), or if we were not able to run geterrmessage()
 			errMsg = rse.getLocalizedMessage();
 		}
+		if ( RCompiledScript.isNotInstalledError( errMsg ) )
+			RCompiledScript.uninstall( conn );
 		ScriptException se = new ScriptException( errMsg );
 		se.initCause( rse );
 		return se;
 	}
 
+	/**
+	 * Gets the pooled connection associated with script context; null if the connection was not obtained
+	 * from RserveConnectionFactory
+	 */
+	private RConnectionPool.PooledConnection getPooledConnection(ScriptContext context) {
+		RConnectionWrapper wrapper = getConnectionWrapper(context);
+		return wrapper == null ? null : wrapper.getPooledConnection();
+	}
+	
+	/**
+	 * Gets the time (ms) each request may take; 0 for no timeout
+	 * @see #ATTR_EVAL_TIMEOUT
+	 */
+	private static long getEvalTimeout(ScriptContext context) {
+		Object timeout = context.getAttribute(ATTR_EVAL_TIMEOUT);
+		return timeout == null ? 0 : ((Number) timeout).longValue();
+	}
+	
+	/**
+	 * Gets the connection wrapper of a script context if it holds a connection; null if the context's
+	 * connection is another one, or was not passed as a wrapper
+	 */
+	private RConnectionWrapper getConnectionWrapper(ScriptContext context, RConnection conn) {
+		RConnectionWrapper wrapper = getConnectionWrapper(context);
+		return wrapper != null && wrapper.getRConnection() == conn ? wrapper : null;
+	}
+	
+	/**
+	 * Gets the connection wrapper of a script context; null if its connection was not passed as a wrapper
+	 */
+	private RConnectionWrapper getConnectionWrapper(ScriptContext context) {
+		Object connObj = context.getAttribute( ATTR_R_CONNECTION );
+		return connObj instanceof RConnectionWrapper ? (RConnectionWrapper) connObj : null;
+	}
+	
 	/**
 	 * Gets the RConnection associated with script context
 	 */
@@ -145,7 +759,27 @@ public class RScriptEngine extends AbstractScriptEngine {
 	
 	@Override
 	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
-		// Read all script text to string
+		return eval( readScript(reader), context);
+	}
+	
+	/**
+	 * Compiles a script. The returned script has its line breaks normalized, and is parsed by R only 
+	 * once per connection.
+	 */
+	@Override
+	public CompiledScript compile(String script) throws ScriptException {
+		return new RCompiledScript( this, fixScriptLineBreak(script) );
+	}
+
+	@Override
+	public CompiledScript compile(Reader reader) throws ScriptException {
+		return compile( readScript(reader) );
+	}
+	
+	/**
+	 * Read all script text to string
+	 */
+	private String readScript(Reader reader) throws ScriptException {
 		StringBuilder sb = new StringBuilder();
 		char[] cbuf = new char[4000];
 		int len = 0;
@@ -157,16 +791,15 @@ public class RScriptEngine extends AbstractScriptEngine {
 			logger.log( Level.WARNING, "Failed to read script", e);
 			throw new ScriptException( e );
 		}
-		
-		return eval( sb.toString(), context);
+		return sb.toString();
 	}
 
 	/**
-	 * Creates a SimpleBindings instance
+	 * Creates a SimpleBindings instance that can be shared by threads
 	 */
 	@Override
 	public Bindings createBindings() {
-		return new SimpleBindings();
+		return createEngineBindings();
 	}
 
 	@Override
@@ -188,7 +821,67 @@ public class RScriptEngine extends AbstractScriptEngine {
 			super.put(key, value);
 		} else {
 			RConnection rconn = getRConnection( this.getContext() );
-			assignRVariable(key, value, rconn);
+			ReentrantLock lock = lockOf( rconn );
+			lock.lock();
+			try {
+				flush( rconn );
+				assignRVariable(key, value, rconn);
+			} catch ( ScriptException e ) {
+				throw new RuntimeException(e);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Sets multiple attribute values, e.g. from a Bindings. Attributes whose name starts with '#' are handled
+	 * locally; all other values are sent to Rserve in a single named list which is then expanded into the
+	 * global environment. The number of round trips to Rserve does not depend on the number of values.
+	 */
+	public void putAll(Map<String, ?> values) {
+		List<String> names = new ArrayList<String>( values.size() );
+		List<REXP> contents = new ArrayList<REXP>( values.size() );
+		try {
+			for ( Map.Entry<String, ?> entry : values.entrySet() ) {
+				String key = entry.getKey();
+				if ( key == null || key.isEmpty() )
+					throw new IllegalArgumentException("key is empty");
+				
+				if (key.charAt(0) == '#') {
+					// Put key/value in local binding
+					super.put(key, entry.getValue());
+				} else {
+					names.add( key );
+					contents.add( objectToREXP( entry.getValue() ) );
+				}
+			}
+			if ( names.isEmpty() )
+				return;
+			
+			RConnection rconn = getRConnection( this.getContext() );
+			RList rlist = new RList( contents.toArray( new REXP[contents.size()] ), 
+					names.toArray( new String[names.size()] ) );
+			long start = System.nanoTime();
+			ReentrantLock lock = lockOf( rconn );
+			lock.lock();
+			try {
+				flush( rconn );
+				rconn.assign( BATCH_VAR, new REXPGenericVector( rlist ) );
+				rconn.voidEval( "list2env(" + BATCH_VAR + ", envir = globalenv())\nrm(" + BATCH_VAR + ")" );
+			} finally {
+				lock.unlock();
+			}
+			if ( RMetrics.isEnabled() ) {
+				long bytes = 0;
+				for ( REXP content : contents )
+					bytes += RMetrics.sizeOf( content );
+				RMetrics.assigned( names.size(), bytes, System.nanoTime() - start );
+			}
+			for ( int i = 0; i < names.size(); i++ )
+				recordInput( names.get(i), contents.get(i) );
+		} catch ( ScriptException | REngineException | REXPMismatchException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -199,12 +892,125 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 * or Double.NaN.
 	 * @param script R statements to evaluate
 	 * @param type Requested output type. Supported types are: int, int[], Integer[],
-	 *        double, double[], Double[], String, String[], double[][], byte[], Map (for data frames) 
+	 *        double, double[], Double[], String, String[], double[][], byte[], Map (for data frames),
+	 *        RDataFrame (columnar data frame), RDoubleColumn, RIntColumn, RStringColumn and RColumn 
+	 *        (vectors kept in primitive arrays, with NA tracked in a bitmap rather than as null elements),
+	 *        DoubleBuffer and IntBuffer (see evalAsDoubleBuffer). A Map is converted on demand if 
+	 *        ATTR_RESULT_LAZY or ATTR_RESULT_LAZY_REMOTE is set in the engine's context
 	 * @param rconn RConnection to use for evaluation
 	 */
 	public Object evalAsType(String script, Class<?> type, RConnection rconn) 
 			throws RserveException, REXPMismatchException, ScriptException {
-		REXP result = rconn.eval( script );
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			Object subset = getContext().getAttribute(ATTR_RESULT_SUBSET);
+			if ( subset instanceof RResultSubset )
+				return evalAsType(script, type, (RResultSubset) subset, rconn);
+			return evalAsTypeNoSubset(script, type, rconn);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Evaluate script, take a subset of its result on the Rserve side, and cast the subset to specified type.
+	 * Only the selected columns and rows are transferred.
+	 * @param type Requested output type; see evalAsType(String, Class, RConnection). The subset is only 
+	 *        applied for Map, RDataFrame and RChunkedResult (see evalStreaming)
+	 * @param subset Columns, filter predicates and row limit
+	 * @param rconn RConnection to use for evaluation
+	 */
+	public Object evalAsType(String script, Class<?> type, RResultSubset subset, RConnection rconn) 
+			throws RserveException, REXPMismatchException, ScriptException {
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			if ( type == RChunkedResult.class ) {
+				flush( rconn );
+				Object chunkSize = getContext().getAttribute(ATTR_STREAM_CHUNK_SIZE);
+				return evalStreaming( subset.wrap(script), chunkSize == null ? DEFAULT_STREAM_CHUNK_SIZE
+						: ((Number) chunkSize).intValue(), rconn );
+			}
+			return evalAsTypeNoSubset( isDataFrameType(type) ? subset.wrap(script) : script, type, rconn );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private Object evalAsTypeNoSubset(String script, Class<?> type, RConnection rconn) 
+			throws RserveException, REXPMismatchException, ScriptException {
+		if ( Map.class.isAssignableFrom(type) && Boolean.TRUE.equals( getContext().getAttribute(ATTR_RESULT_LAZY_REMOTE) ) )
+			return evalAsLazyMap(script, Boolean.TRUE.equals( getContext().getAttribute(ATTR_RESULT_FACTORS) ), rconn);
+		flush( rconn );
+		return convert( eval( rconn, script, getContext() ), type, getContext() );
+	}
+	
+	/**
+	 * Whether a result type is a data frame representation, to which ATTR_RESULT_SUBSET applies
+	 */
+	private static boolean isDataFrameType(Class<?> type) {
+		return type != null && ( Map.class.isAssignableFrom(type) || type == RDataFrame.class 
+				|| type == RChunkedResult.class );
+	}
+	
+	/**
+	 * Evaluate script and return its result, which must be numeric, as doubles. Values are transferred as a 
+	 * packed little-endian raw vector, and decoded with a single copy into dest. Matrices are returned in 
+	 * column-major order. NA values are returned as REXPDouble.NA.
+	 * @param dest Buffer to copy values to, starting at its position; may be a direct buffer. If null, a heap 
+	 *        buffer that wraps the transferred bytes is returned
+	 * @param rconn RConnection to use for evaluation
+	 * @return dest, or a new buffer
+	 */
+	public DoubleBuffer evalAsDoubleBuffer(String script, DoubleBuffer dest, RConnection rconn)
+			throws RserveException, REXPMismatchException {
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			return RVectorConverter.to_doubleBuffer( eval( rconn, packNumeric( script, DoubleBuffer.class ), getContext() ), 
+					dest );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Evaluate script and return its result, which must be numeric, as integers. Values are transferred as a 
+	 * packed little-endian raw vector, and decoded with a single copy into dest. NA values are returned as 
+	 * REXPInteger.NA.
+	 * @param dest Buffer to copy values to, starting at its position; may be a direct buffer. If null, a heap 
+	 *        buffer that wraps the transferred bytes is returned
+	 * @param rconn RConnection to use for evaluation
+	 * @return dest, or a new buffer
+	 */
+	public IntBuffer evalAsIntBuffer(String script, IntBuffer dest, RConnection rconn)
+			throws RserveException, REXPMismatchException {
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			return RVectorConverter.to_intBuffer( eval( rconn, packNumeric( script, IntBuffer.class ), getContext() ), 
+					dest );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Wraps a script so that its numeric result is returned as a raw vector of little-endian values
+	 */
+	private static String packNumeric(String script, Class<?> bufferClass) {
+		if ( bufferClass == IntBuffer.class )
+			return "writeBin(as.integer({\n" + script + "\n}), raw(), size = 4L, endian = \"little\")";
+		return "writeBin(as.double({\n" + script + "\n}), raw(), size = 8L, endian = \"little\")";
+	}
+	
+	/**
+	 * Converts an evaluation result to specified type
+	 * @see #evalAsType(String, Class, RConnection)
+	 */
+	private Object toType(REXP result, Class<?> type, ScriptContext context) 
+			throws REXPMismatchException, ScriptException {
 		if (result.isNull())
 			return null;
 		
@@ -230,12 +1036,69 @@ public class RScriptEngine extends AbstractScriptEngine {
 		} else if ( type == byte[].class) {
 			return result.asBytes();
 		} else if ( Map.class.isAssignableFrom(type)) {
-			return mapFromREXP(result);
+			boolean factors = Boolean.TRUE.equals( context.getAttribute(ATTR_RESULT_FACTORS) );
+			if ( result.isList() && Boolean.TRUE.equals( context.getAttribute(ATTR_RESULT_LAZY) ) )
+				return lazyMapFromDataFrame(result, factors);
+			return mapFromREXP(result, factors, getParallelThreshold(context));
+		} else if ( type == RDataFrame.class ) {
+			return RDataFrame.fromREXP(result);
+		} else if ( type == RDoubleColumn.class ) {
+			return new RDoubleColumn( null, RVectorConverter.to_doubles( result ) );
+		} else if ( type == RIntColumn.class ) {
+			return new RIntColumn( null, result.isLogical() ? RColumn.Type.LOGICAL : RColumn.Type.INTEGER,
+					RVectorConverter.to_ints( result ) );
+		} else if ( type == RStringColumn.class ) {
+			return new RStringColumn( null, RVectorConverter.to_Strings( result ) );
+		} else if ( type == RColumn.class ) {
+			return RColumn.fromREXP( null, result );
+		} else if ( type == DoubleBuffer.class ) {
+			return RVectorConverter.to_doubleBuffer( result, null );
+		} else if ( type == IntBuffer.class ) {
+			return RVectorConverter.to_intBuffer( result, null );
 		} else {
 			throw new ScriptException( "Invalid type: " + type.getName() );
 		}
 	}
 
+	/**
+	 * Evaluate script and keep its result on the Rserve side as a data frame. Returned RChunkedResult 
+	 * transfers the data frame in chunks of chunkSize rows; it must be closed to free the server-side result.
+	 * @param script R statements to evaluate; the result must be a data frame or be convertible to one
+	 *        by as.data.frame()
+	 * @param chunkSize Maximum number of rows to transfer at a time
+	 * @param rconn RConnection to use for evaluation
+	 */
+	public RChunkedResult evalStreaming(String script, int chunkSize, RConnection rconn)
+			throws RserveException, REXPMismatchException {
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			return evalStreaming( script, chunkSize, rconn, getContext() );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private RChunkedResult evalStreaming(String script, int chunkSize, RConnection rconn, ScriptContext context)
+			throws RserveException, REXPMismatchException {
+		String varName = STREAM_VAR_PREFIX + streamCounter.incrementAndGet();
+		REXP rowCount = eval( rconn, varName + " <- as.data.frame({\n" + script + "\n}, stringsAsFactors = FALSE)\n"
+				+ "nrow(" + varName + ")", context );
+		return new RChunkedResult( rconn, getConnectionWrapper(context, rconn), varName, rowCount.asInteger(), 
+				chunkSize, getEvalTimeout(context) );
+	}
+
+	/**
+	 * Gets the size above which data frames are converted on several cores; 0 if parallel conversion is off
+	 */
+	private static long getParallelThreshold(ScriptContext context) {
+		if ( !Boolean.TRUE.equals( context.getAttribute(ATTR_RESULT_PARALLEL) ) )
+			return 0;
+		Object threshold = context.getAttribute(ATTR_RESULT_PARALLEL_THRESHOLD);
+		return threshold instanceof Number ? Math.max( 1, ((Number) threshold).longValue() )
+				: RColumnConverter.DEFAULT_PARALLEL_THRESHOLD;
+	}
+	
 	/**
 	 * Converts an rexp to a [name (String) -> value (Array)] map
 	 * 
@@ -243,10 +1106,10 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 * @return
 	 * @throws REXPMismatchException
 	 */
-	private Map<String, Object> mapFromREXP( REXP rexp )
+	private Map<String, Object> mapFromREXP( REXP rexp, boolean factors, long parallelThreshold )
 			throws REXPMismatchException {
 		if ( rexp.isList( ) ) {
-			return mapFromDataFrame( rexp );
+			return mapFromDataFrame( rexp, factors, parallelThreshold );
 		}
 		// cover matrix and array:
 		LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>( );
@@ -282,50 +1145,106 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 * Converts a data frame to a [name (String) -> value (Array)] map 
 	 * The map's key (i.e. column name) list preserves the original order of keys 
 	 */
-	private Map<String, Object> mapFromDataFrame( REXP rexp ) throws REXPMismatchException {
+	Map<String, Object> mapFromDataFrame( REXP rexp ) throws REXPMismatchException {
+		return mapFromDataFrame( rexp, false, 0 );
+	}
+	
+	/**
+	 * Converts a data frame to a [name (String) -> value (Array)] map 
+	 * @param factors If true, factor and character columns are returned as RFactorColumn, i.e. as an
+	 *        int[] of codes into a shared array of distinct strings, rather than as String[]
+	 * @param parallelThreshold Size above which columns are converted on several cores (see RColumnConverter);
+	 *        0 for sequential conversion
+	 */
+	Map<String, Object> mapFromDataFrame( REXP rexp, boolean factors, long parallelThreshold ) 
+			throws REXPMismatchException {
 		// Use linkedhashmap to preserve key order (i.e., column name order)
 		LinkedHashMap<String, Object> result = new LinkedHashMap<String, Object>();
 		
 		// First column: row names (if present)
 		REXP reNames = rexp.getAttribute("row.names");
-		if (reNames != null && ! reNames.isInteger( ) ) {
-			Object rNames = reNames.asNativeJavaObject();
-			result.put(COLUMN_ROW_NAME, rNames);
-		}
-		else if ( reNames != null && reNames.isInteger( ) ) { //custom index
-			int[] numericIndex = reNames.asIntegers( );
-			if ( numericIndex.length != 2
-					|| numericIndex[0] != Integer.MIN_VALUE ) {
-				result.put( COLUMN_ROW_NAME, numericIndex );
-			} else {
-				// NA followed by a negative number L means an auto index of [1 ... -L]
-				int len = - numericIndex[1];
-				if ( len > 0 ) {
-					int[] autoIndex = new int[len];
-					for ( int i = 0; i < len; i++ )
-						autoIndex[i] = i + 1;
-					result.put( COLUMN_ROW_NAME, autoIndex );
-				}
-			}
-		}
+		if ( RColumnConverter.hasRowNames( reNames ) )
+			result.put( COLUMN_ROW_NAME, RColumnConverter.convertRowNames( reNames ) );
 
 		// Data from RList is retrieved by columns; each column is a vector
 		RList rlist = rexp.asList();
 		int nCols = rlist.size();
-
-		String[] columnNames = rlist.keys();
+		String[] names = columnNames( rlist.keys(), nCols );
+		
+		Object[] values = RColumnConverter.convert( names, rlist, factors, parallelThreshold );
+		for (int col = 0; col < nCols; col++)
+			result.put( names[col], values[col] );
+		
+		return result;
+	}
+	
+	/**
+	 * Gets the keys of the columns of a data frame in the Map result type
+	 */
+	private static String[] columnNames(String[] columnNames, int nCols) {
+		String[] names = new String[nCols];
 		for (int col = 0; col < nCols; col++) {
 			String colName = columnNames[col];
 
 			// Generate unique column name for unnamed columns
 			if (colName == null || colName.isEmpty())
 				colName = DEFAULT_COLUMN_NAME + (col + 1);
-
-			REXP val = rlist.at(col);
-			result.put( colName, val.asNativeJavaObject());
+			names[col] = colName;
 		}
-		
-		return result;
+		return names;
+	}
+	
+	/**
+	 * Converts a data frame to a map whose columns are converted when they are first read
+	 * @see RLazyDataFrameMap
+	 */
+	RLazyDataFrameMap lazyMapFromDataFrame( REXP rexp, boolean factors ) throws REXPMismatchException {
+		REXP reNames = rexp.getAttribute("row.names");
+		RList rlist = rexp.asList();
+		return new RLazyDataFrameMap( columnNames( rlist.keys(), rlist.size() ), 
+				RColumnConverter.hasRowNames( reNames ) ? reNames : null, rlist, factors );
+	}
+	
+	/**
+	 * Evaluate script and keep its result on the Rserve side. Only the column names of the result are 
+	 * transferred; each column is transferred and converted when it is first read from the returned map, 
+	 * which must be closed to free the server-side result. A result that is not a data frame or a list is
+	 * transferred and converted immediately, as for the Map result type.
+	 * @param factors See ATTR_RESULT_FACTORS
+	 * @param rconn RConnection to use for evaluation
+	 */
+	public Map<String, Object> evalAsLazyMap(String script, boolean factors, RConnection rconn)
+			throws RserveException, REXPMismatchException, ScriptException {
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			return evalAsLazyMap( script, factors, rconn, getContext() );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private Map<String, Object> evalAsLazyMap(String script, boolean factors, RConnection rconn, 
+			ScriptContext context) throws RserveException, REXPMismatchException, ScriptException {
+		flush( context, rconn );
+		String varName = LAZY_VAR_PREFIX + streamCounter.incrementAndGet();
+		// Return the column names, or the whole result (removing it from the workspace) if it has no columns
+		REXP header = eval( rconn, varName + " <- {\n" + script + "\n}\n"
+				+ "if (is.list(" + varName + ")) {\n"
+				+ "  list(names = if (is.null(names(" + varName + "))) character(length(" + varName + "))\n"
+				+ "               else names(" + varName + "),\n"
+				+ "       rownames = !is.null(attr(" + varName + ", \"row.names\")))\n"
+				+ "} else {\n"
+				+ "  list(value = get(\"" + varName + "\"), rm(" + varName + "))\n"
+				+ "}", context );
+		RList fields = header.asList();
+		REXP value = fields.at( "value" );
+		if ( value != null )
+			return value.isNull() ? null : mapFromREXP( value, factors, 0 );
+		REXP names = fields.at( "names" );
+		return new RLazyDataFrameMap( columnNames( names.asStrings(), names.length() ), 
+				fields.at( "rownames" ).asInteger() == 1, rconn, getConnectionWrapper(context, rconn), varName, factors,
+				getEvalTimeout(context) );
 	}
 
 	
@@ -333,7 +1252,7 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 * Converts a 2-d Number array or list to a REXP that represents a R double matrix
 	 * @throws BirtException 
 	 */
-	private REXP toDoubleMatrix(Object[] values)   {
+	REXP toDoubleMatrix(Object[] values)   {
 		if ( values instanceof double[][] ) {
 			return REXP.createDoubleMatrix( (double[][]) values);
 		}
@@ -356,35 +1275,29 @@ public class RScriptEngine extends AbstractScriptEngine {
 			ncols = Array.getLength( values[0]);
 		}
 		
-		// Copy data to double[][] array
-		double[][] matrix = new double[nrows][ncols];
+		// Copy data directly to column-major R matrix payload
+		double[] matrix = new double[nrows * ncols];
 		for ( int r = 0; r < nrows; r++ ) {
 			Object row = values[r];
 			if ( row instanceof Collection) {
 				// Iterate through collection and convert each value to double
 				int c = 0;
 				for ( Object o : (Collection<?>) row) {
-					matrix[r][c] =  toDouble(o);
+					matrix[c * nrows + r] =  toDouble(o);
 					if ( (++c) >= ncols )
 						break;
 				}
 			}  else {
 				// Row is array
-				for ( int c = 0; c < ncols; c++ ) {
-					matrix[r][c] = toDouble(Array.get(row,c));
-				}
+				RArrayConverter.toDoubles( row, matrix, r, nrows, ncols );
 			}
 		}
 		
-		return REXP.createDoubleMatrix( matrix);
+		return new REXPDouble( matrix, new REXPList( new REXPInteger( new int[] { nrows, ncols } ), "dim" ) );
 	}
 
 	private double toDouble(Object value) {
-		if (value == null)
-			return REXPDouble.NA;
-		if (value instanceof Number)
-			return ((Number)value).doubleValue();
-		return Double.parseDouble( value.toString() );
+		return RArrayConverter.toDouble( value );
 	}
 	
 	/**
@@ -400,69 +1313,27 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 * Converts an array to appropriate REXP subclass instance
 	 * @throws BirtException 
 	 */
-	private REXP arrayToREXP(Object array)  {
+	REXP arrayToREXP(Object array)  {
 		assert array.getClass().isArray();
 
-		// int, double and String arrays can be directly passed to REXP;
-		if ( array instanceof int[] ) {
-			return new REXPInteger( (int[]) array);
-		} else if (array instanceof double[] ) {
-			return new REXPDouble( (double[]) array);
-		} else if ( array instanceof String[] ) {
-			return new REXPString( (String[]) array );
-		}
-
 		// Examine first element to see if it is a collection or array
-		Object first = Array.get(array, 0);
-		if ( first != null && 
-			( first.getClass().isArray() || first instanceof Collection)) {
-			// 2-D array or collection; convert to matrix
-			return toDoubleMatrix( (Object[]) array);
-		}
-		
-		int len = Array.getLength(array);
-		if ( len == 0)
-			return new REXPNull();
-		
-		// Need to unbox or convert data types
-		Class<?> baseClass = array.getClass().getComponentType();
-		// if array type is Object[], we should find the first non-null value to determine the actual type
-		if ( baseClass == Object.class) {
-			for (int i = 0; i < len; i++ ) {
-				Object elem = Array.get( array, i);
-				if ( elem != null ) {
-					baseClass = elem.getClass();
-					break;
-				}
+		if ( array instanceof Object[] && ((Object[]) array).length > 0 ) {
+			Object first = ((Object[]) array)[0];
+			if ( first != null && 
+				( first.getClass().isArray() || first instanceof Collection)) {
+				// 2-D array or collection; convert to matrix
+				return toDoubleMatrix( (Object[]) array);
 			}
 		}
 		
-		if ( baseClass == Integer.class ) {
-			int[] ints = new int[len];
-			for (int i = 0; i < len; i++ ) {
-				Integer v = (Integer) Array.get(array, i);
-				// Convert null to NA
-				ints[i] = v == null? REXPInteger.NA : v;
-			}
-			return  new REXPInteger( ints );
-		} else if ( Number.class.isAssignableFrom( baseClass)) {
-			//  All other numbers are passed as Double 
-			double[] doubles = new double[len];
-			for (int i = 0; i < len; i++ ) {
-				Number v = ((Number)Array.get(array, i));
-				// Convert null to NA
-				doubles[i] = v == null? REXPDouble.NA : v.doubleValue();
-			}
-			return  new REXPDouble( doubles );
-		} else {
-			// Everything else is converted to string array
-			String[] strs = new String[len];
-			for (int i = 0; i < len; i++) {
-				Object val = Array.get(array, i);
- 				strs[i] = val == null? null : val.toString();
-			}
-			return new REXPString( strs);
+		// 1-D array; conversion is specialized by array type
+		REXP ret = RArrayConverter.toREXP( array );
+		if ( ret instanceof REXPString && Boolean.TRUE.equals( getContext().getAttribute(ATTR_ASSIGN_FACTORS) ) ) {
+			REXP factor = RArrayConverter.toFactor( ((REXPString) ret).asStrings() );
+			if ( factor != null )
+				return factor;
 		}
+		return ret;
 	}
 	
 	/**
@@ -472,32 +1343,72 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 *  2-d number array - assigned to double frame
 	 *  Map - assigned to data frame
 	 */
+	@SuppressWarnings("unchecked")
 	private void assignRVariable(String var, Object value, RConnection rconn)  {
 		try {
+			if ( value instanceof Map && isBulkUpload( (Map<String, Object>) value ) ) {
+				long start = System.nanoTime();
+				long bytes = RDataFrameUploader.upload( rconn, var, (Map<String, Object>) value, getUploadChunkSize() );
+				if ( RMetrics.isEnabled() )
+					RMetrics.assigned( 1, bytes, System.nanoTime() - start );
+				// Uploaded data is not digested; results that depend on it are not cached
+				inputDigests.put( var, "" );
+				return;
+			}
+			
 			REXP valExp = objectToREXP( value);
+			long start = System.nanoTime();
 			rconn.assign(var, valExp);
+			if ( RMetrics.isEnabled() )
+				RMetrics.assigned( 1, RMetrics.sizeOf( valExp ), System.nanoTime() - start );
+			recordInput(var, valExp);
 		} catch ( ScriptException | REngineException | REXPMismatchException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	/**
+	 * Checks whether a map should be sent with a chunked upload rather than as a single REXP
+	 */
+	private boolean isBulkUpload(Map<String, Object> map) {
+		int chunkSize = getUploadChunkSize();
+		if ( chunkSize <= 0 || map.isEmpty() || !RDataFrameUploader.isUploadable( map ) )
+			return false;
+		Object first = map.values().iterator().next();
+		int rows = first instanceof Collection ? ((Collection<?>) first).size() : Array.getLength( first );
+		return rows > chunkSize;
+	}
+	
+	private int getUploadChunkSize() {
+		Object chunkSize = getContext().getAttribute(ATTR_UPLOAD_CHUNK_SIZE);
+		return chunkSize == null ? 0 : ((Number) chunkSize).intValue();
+	}
+	
 	/**
 	 * Converts a java object to REXP. Conversion rules are as follows:
 	 *   null -> NULL
 	 *   Integer, array of integer, or Collection of integer -> Integer vector
 	 *   Number, or array/Collection of numbers -> Double vector
+	 *   Date, or array/Collection of dates -> POSIXct vector
 	 *   2-dimensional array/Collection of numbers -> Double matrix
 	 *   Map<String, Object> -> A Data Frame, if all mapped values are equal-sized vectors; otherwise a pair list
-	 *   String or other types, or array/Collection of such -> String vector
+	 *   RFactorColumn -> Factor
+	 *   String or other types, or array/Collection of such -> String vector (or factor, if ATTR_ASSIGN_FACTORS is set
+	 *     and values are repetitive)
 	 */
 	@SuppressWarnings("unchecked")
-	private REXP objectToREXP( Object value ) throws  ScriptException, REXPMismatchException {
+	REXP objectToREXP( Object value ) throws  ScriptException, REXPMismatchException {
 		if (value == null)
 			return new REXPNull();
 		
 		if (value instanceof Map)
 			return mapToREXP( (Map<String, Object>) value);
 		
+		if (value instanceof RFactorColumn) {
+			RFactorColumn factor = (RFactorColumn) value;
+			return new REXPFactor( factor.getCodes(), factor.getLevels() );
+		}
+		
 		Class<?> cls = value.getClass();
 		if ( cls.isArray() ) 
 			return arrayToREXP(value);
@@ -512,6 +1423,9 @@ public class RScriptEngine extends AbstractScriptEngine {
 			// All other number types are handled as double
 			return new REXPDouble( ((Number) value).doubleValue() );
 		
+		if (value instanceof Date)
+			return RArrayConverter.toPOSIXct( new double[] { ((Date) value).getTime() / 1000.0 } );
+		
 		// Treat everything else as a String
 		return new REXPString( value.toString() );
 	}
@@ -522,7 +1436,7 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 * @throws REXPMismatchException 
 	 * @throws BirtException 
 	 */ 
-	private REXP mapToREXP( Map<String, Object> map ) 
+	REXP mapToREXP( Map<String, Object> map ) 
 			throws ScriptException, REXPMismatchException{
 
 		int i = 0;
@@ -573,7 +1487,21 @@ public class RScriptEngine extends AbstractScriptEngine {
 	 */
 	public Object evalAutoType(String script, RConnection rconn) 
 			throws ScriptException, RserveException, REXPMismatchException {
-		REXP rexp = rconn.eval( script );
+		ReentrantLock lock = lockOf( rconn );
+		lock.lock();
+		try {
+			flush( rconn );
+			return convert( eval( rconn, script, getContext() ), null, getContext() );
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Converts an evaluation result to the Java object that best represents it
+	 * @see #evalAutoType(String, RConnection)
+	 */
+	private Object toAutoType(REXP rexp) throws REXPMismatchException {
 		Object result = rexp.asNativeJavaObject();
 		if ( result != null && result.getClass().isArray() ) {
 			int len = Array.getLength( result );
@@ -20,6 +20,13 @@ public class RScriptEngineFactory implements ScriptEngineFactory {
 	public static List<String> names = Collections.unmodifiableList(
 			Arrays.asList("BirtR"));
 	
+	/** Value of the THREADING parameter: null, since engines are not thread-safe. Engine state such as the 
+	 *  digests of assigned inputs is shared by all contexts; use getThreadEngine() to get an engine per thread */
+	private static final String THREADING = null;
+	
+	/** Engines confined to a thread, returned by getThreadEngine() */
+	private final ThreadLocal<RScriptEngine> threadEngines = new ThreadLocal<RScriptEngine>();
+	
 	@Override
 	public String getEngineName() {
 		return "BIRT-R Script Engine";
@@ -55,8 +62,24 @@ public class RScriptEngineFactory implements ScriptEngineFactory {
 		return "1.0.0";
 	}
 
+	/**
+	 * Gets the value of a standard engine parameter. THREADING is null: an engine must not be used by 
+	 * concurrent threads (see THREADING).
+	 */
 	@Override
 	public Object getParameter(String key) {
+		if ( ScriptEngine.ENGINE.equals( key ) )
+			return getEngineName();
+		if ( ScriptEngine.ENGINE_VERSION.equals( key ) )
+			return getEngineVersion();
+		if ( ScriptEngine.NAME.equals( key ) )
+			return names.get( 0 );
+		if ( ScriptEngine.LANGUAGE.equals( key ) )
+			return getLanguageName();
+		if ( ScriptEngine.LANGUAGE_VERSION.equals( key ) )
+			return getLanguageVersion();
+		if ( "THREADING".equals( key ) )
+			return THREADING;
 		return null;
 	}
 
@@ -79,5 +102,29 @@ public class RScriptEngineFactory implements ScriptEngineFactory {
 	public ScriptEngine getScriptEngine() {
 		return new RScriptEngine( this );
 	}
+	
+	/**
+	 * Gets an engine confined to the calling thread, which is created on first use and reused afterwards 
+	 * instead of allocating a new engine and context for each script. The engine is reset each time it is
+	 * returned (see RScriptEngine.reset), so local attributes set during one use, such as the R connection,
+	 * do not leak into the next one. The engine must not be passed to other threads.
+	 */
+	public RScriptEngine getThreadEngine() {
+		RScriptEngine engine = threadEngines.get();
+		if ( engine == null ) {
+			engine = new RScriptEngine( this );
+			threadEngines.set( engine );
+		} else {
+			engine.reset();
+		}
+		return engine;
+	}
+	
+	/**
+	 * Discards the engine of the calling thread, e.g. before a pooled thread is returned to its pool
+	 */
+	public void releaseThreadEngine() {
+		threadEngines.remove();
+	}
 
 }
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+/**
+ * Column of R character values. NA values are stored as null.
+ */
+public class RStringColumn extends RColumn {
+	private final String[] values;
+
+	public RStringColumn( String name, String[] values ) {
+		super( name, Type.STRING, values.length );
+		this.values = values;
+		for ( int i = 0; i < values.length; i++ ) {
+			if ( values[i] == null )
+				setNA( i );
+		}
+	}
+
+	public String getString( int index ) {
+		return values[index];
+	}
+
+	/**
+	 * Gets the underlying array of values. The returned array is not a copy and must not be modified.
+	 */
+	public String[] getValues() {
+		return values;
+	}
+
+	@Override
+	public Object getObject( int index ) {
+		return values[index];
+	}
+}
@@ -6,6 +6,11 @@
 
 package com.actuate.birt.script.ext.rserve;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
 import org.rosuda.REngine.REXP;
 import org.rosuda.REngine.REXPDouble;
 import org.rosuda.REngine.REXPInteger;
@@ -19,6 +24,20 @@ import org.rosuda.REngine.REXPMismatchException;
  */
 public class RVectorConverter {
 
+	/**
+	 * Converts an R integer value to double; integer NA is converted to double NA
+	 */
+	public static double toDouble( int value ) {
+		return value == REXPInteger.NA ? REXPDouble.NA : value;
+	}
+	
+	/**
+	 * Converts an R double value to int; double NA is converted to integer NA
+	 */
+	public static int toInt( double value ) {
+		return REXPDouble.isNA( value ) ? REXPInteger.NA : (int) value;
+	}
+
 	public static double[] to_doubles( REXP source ) throws REXPMismatchException {
 		if ( source.isInteger() ) {
 			// Make sure the integer NA is converted to double NA, instead of Integer.MIN_VALUE
@@ -107,41 +126,152 @@ public class RVectorConverter {
 	}
 	
 	public static String[] to_Strings( REXP source ) throws REXPMismatchException {
-		String[] ret = source.asStrings();
+		// Factors are integer vectors too, but convert to their level labels
+		if ( ( source instanceof REXPInteger && !source.isFactor() ) || source instanceof REXPDouble ) {
+			String[] ret = new String[source.length()];
+			to_Strings( source, ret );
+			return ret;
+		}
+		return source.asStrings();
+	}
+	
+	public static double[][] to_doubleMatrix( REXP source ) throws REXPMismatchException {
+		int[] dim = getDim( source );
+		int rows = dim[0];
+		int cols = dim[1];
+		double[][] ret = new double[rows][cols];
 		
-		// change all NA values to null
-		if ( source instanceof REXPInteger ) {
+		// Transpose from column-major payload, converting integer NA to double NA in the same pass
+		if ( source.isInteger() ) {
 			int[] payload = source.asIntegers();
-			for (int i = 0; i < payload.length; i++ ) {
-				if ( payload[i] == REXPInteger.NA )
-					ret[i] = null;
-			}
-		} else if (source instanceof REXPDouble ) {
+			for ( int c = 0; c < cols; c++ ) 
+				for ( int r = 0; r < rows; r++ )
+					ret[r][c] = toDouble( payload[c * rows + r] );
+		} else {
 			double[] payload = source.asDoubles();
-			for (int i = 0; i < payload.length; i++ ) {
-				if ( REXPDouble.isNA( payload[i] ) )
-					ret[i] = null;
-			}
+			for ( int c = 0; c < cols; c++ ) 
+				for ( int r = 0; r < rows; r++ )
+					ret[r][c] = payload[c * rows + r];
 		}
-		
 		return ret;
 	}
 	
-	public static double[][] to_doubleMatrix( REXP source ) throws REXPMismatchException {
-		double[][] ret = source.asDoubleMatrix();
-		
-		int rows = ret.length;
-		int cols = rows > 0? ret[0].length : 0;
-		
-		// Fix int->double conversion for NA values
+	/**
+	 * Converts an R vector to doubles, writing them into a caller-supplied array, e.g. one obtained
+	 * from RConversionBuffers. NA values are converted as by to_doubles(REXP).
+	 * @param dest Destination array; values are written from index 0
+	 * @return Number of values of source. If it is greater than the length of dest, nothing is written
+	 */
+	public static int to_doubles( REXP source, double[] dest ) throws REXPMismatchException {
 		if ( source.isInteger() ) {
-			for ( int r = 0; r < rows; r++ ) 
-				for ( int c = 0; c < cols; c++ ) {
-					if ( ret[r][c] == REXPInteger.NA )
-						ret[r][c] = REXPDouble.NA;
-				}
+			int[] ints = source.asIntegers();
+			if ( ints.length <= dest.length ) {
+				for ( int i = 0; i < ints.length; i++ )
+					dest[i] = toDouble( ints[i] );
+			}
+			return ints.length;
 		}
-		
-		return ret;
+		double[] d = source.asDoubles();
+		if ( d.length <= dest.length )
+			System.arraycopy( d, 0, dest, 0, d.length );
+		return d.length;
+	}
+	
+	/**
+	 * Converts an R vector to integers, writing them into a caller-supplied array, e.g. one obtained
+	 * from RConversionBuffers. NA values are converted as by to_ints(REXP).
+	 * @param dest Destination array; values are written from index 0
+	 * @return Number of values of source. If it is greater than the length of dest, nothing is written
+	 */
+	public static int to_ints( REXP source, int[] dest ) throws REXPMismatchException {
+		if ( source instanceof REXPDouble ) {
+			double[] d = source.asDoubles();
+			if ( d.length <= dest.length ) {
+				for ( int i = 0; i < d.length; i++ )
+					dest[i] = toInt( d[i] );
+			}
+			return d.length;
+		}
+		int[] ints = source.asIntegers();
+		if ( ints.length <= dest.length )
+			System.arraycopy( ints, 0, dest, 0, ints.length );
+		return ints.length;
+	}
+	
+	/**
+	 * Converts an R vector to strings, writing them into a caller-supplied array, e.g. one obtained
+	 * from RConversionBuffers. NA values are converted to null; factors are converted to their level labels.
+	 * @param dest Destination array; values are written from index 0
+	 * @return Number of values of source. If it is greater than the length of dest, nothing is written
+	 */
+	public static int to_Strings( REXP source, String[] dest ) throws REXPMismatchException {
+		if ( source instanceof REXPInteger && !source.isFactor() ) {
+			int[] payload = source.asIntegers();
+			if ( payload.length <= dest.length ) {
+				for ( int i = 0; i < payload.length; i++ )
+					dest[i] = payload[i] == REXPInteger.NA ? null : String.valueOf( payload[i] );
+			}
+			return payload.length;
+		} else if ( source instanceof REXPDouble ) {
+			double[] payload = source.asDoubles();
+			if ( payload.length <= dest.length ) {
+				for ( int i = 0; i < payload.length; i++ )
+					dest[i] = REXPDouble.isNA( payload[i] ) ? null : String.valueOf( payload[i] );
+			}
+			return payload.length;
+		}
+		String[] s = source.asStrings();
+		if ( s.length <= dest.length )
+			System.arraycopy( s, 0, dest, 0, s.length );
+		return s.length;
+	}
+	
+	/**
+	 * Gets the (rows, columns) dimensions of an R matrix
+	 */
+	private static int[] getDim( REXP source ) throws REXPMismatchException {
+		REXP dim = source.getAttribute( "dim" );
+		if ( dim == null )
+			throw new REXPMismatchException( source, "matrix (dim attribute missing)" );
+		int[] ds = dim.asIntegers();
+		if ( ds.length != 2 )
+			throw new REXPMismatchException( source, "matrix (wrong dimensionality)" );
+		return ds;
+	}
+	
+	/**
+	 * Converts a numeric R vector to a DoubleBuffer. A raw vector is taken to hold doubles in little-endian
+	 * order (as written by writeBin), and is wrapped without copying.
+	 * @param dest Buffer to copy values to, starting at its current position; may be a direct buffer. If null, 
+	 *        a buffer that wraps the decoded values is returned
+	 * @return dest, with its position advanced past the copied values; or a new buffer positioned at 0
+	 * @throws java.nio.BufferOverflowException if dest does not have enough space remaining
+	 */
+	public static DoubleBuffer to_doubleBuffer( REXP source, DoubleBuffer dest ) throws REXPMismatchException {
+		DoubleBuffer values = source.isRaw() 
+				? ByteBuffer.wrap( source.asBytes() ).order( ByteOrder.LITTLE_ENDIAN ).asDoubleBuffer()
+				: DoubleBuffer.wrap( to_doubles( source ) );
+		if ( dest == null )
+			return values;
+		dest.put( values );
+		return dest;
+	}
+	
+	/**
+	 * Converts a numeric R vector to an IntBuffer. A raw vector is taken to hold 4-byte integers in 
+	 * little-endian order (as written by writeBin), and is wrapped without copying.
+	 * @param dest Buffer to copy values to, starting at its current position; may be a direct buffer. If null, 
+	 *        a buffer that wraps the decoded values is returned
+	 * @return dest, with its position advanced past the copied values; or a new buffer positioned at 0
+	 * @throws java.nio.BufferOverflowException if dest does not have enough space remaining
+	 */
+	public static IntBuffer to_intBuffer( REXP source, IntBuffer dest ) throws REXPMismatchException {
+		IntBuffer values = source.isRaw() 
+				? ByteBuffer.wrap( source.asBytes() ).order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer()
+				: IntBuffer.wrap( to_ints( source ) );
+		if ( dest == null )
+			return values;
+		dest.put( values );
+		return dest;
 	}
 }
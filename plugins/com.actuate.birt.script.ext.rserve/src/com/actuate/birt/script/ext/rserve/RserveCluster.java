@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * A set of equivalent Rserve endpoints. Decides which endpoint a new connection should be obtained from,
+ * according to a load balancing policy. Endpoints that fail to connect are marked unhealthy, and are only
+ * used again once a background health check has been able to connect to them. When there are several
+ * endpoints, the health check also probes healthy endpoints, so that an endpoint that goes down is skipped
+ * before a caller fails to connect to it.
+ */
+class RserveCluster {
+	private static Logger logger = Logger.getLogger( RserveCluster.class.getName() );
+
+	/** Load balancing policies */
+	enum Policy {
+		/** Use endpoints in turn */
+		ROUND_ROBIN,
+		/** Use the endpoint with the fewest connections in use */
+		LEAST_OUTSTANDING,
+		/** Pick endpoints at random, with a probability inversely proportional to their recent latency */
+		LATENCY_WEIGHTED;
+
+		static Policy parse( String value ) {
+			if ( value == null || value.isEmpty() )
+				return ROUND_ROBIN;
+			String s = value.replace( "-", "" ).replace( "_", "" );
+			for ( Policy p : values() ) {
+				if ( p.name().replace( "_", "" ).equalsIgnoreCase( s ) )
+					return p;
+			}
+			throw new IllegalArgumentException( "Unknown load balancing policy: " + value );
+		}
+	}
+
+	/** Weight of the latest sample in the latency moving average */
+	private static final double LATENCY_ALPHA = 0.2;
+
+	private static ScheduledExecutorService healthChecker;
+
+	private final List<Endpoint> endpoints;
+	private final Policy policy;
+	private volatile long healthCheckInterval;
+	private final AtomicInteger nextIndex = new AtomicInteger();
+	private final Random random = new Random();
+	/** Next run of the health check; null if none is scheduled */
+	private volatile ScheduledFuture<?> healthCheck;
+	private volatile boolean closed;
+
+	RserveCluster( List<Endpoint> endpoints, Policy policy, long healthCheckInterval ) {
+		if ( endpoints.isEmpty() )
+			throw new IllegalArgumentException( "No Rserve endpoint" );
+		this.endpoints = endpoints;
+		this.policy = policy;
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/**
+	 * Parses a comma-separated list of host[:port] entries
+	 * @param defaultPort Port of entries that don't specify one; 0 for Rserve's default port
+	 */
+	static List<Endpoint> parseEndpoints( String hosts, int defaultPort ) {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for ( String entry : hosts.split( "," ) ) {
+			entry = entry.trim();
+			if ( entry.isEmpty() )
+				continue;
+			int colon = entry.lastIndexOf( ':' );
+			if ( colon > 0 && entry.indexOf( ':' ) == colon ) {
+				endpoints.add( new Endpoint( entry.substring( 0, colon ),
+						Integer.parseInt( entry.substring( colon + 1 ).trim() ) ) );
+			} else {
+				endpoints.add( new Endpoint( entry, defaultPort ) );
+			}
+		}
+		return endpoints;
+	}
+
+	List<Endpoint> getEndpoints() {
+		return Collections.unmodifiableList( endpoints );
+	}
+
+	/**
+	 * Sets the time between two health checks; takes effect from the next check
+	 */
+	void setHealthCheckInterval( long healthCheckInterval ) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/**
+	 * Gets the endpoints to try, in order. The endpoint chosen by the load balancing policy comes first,
+	 * followed by the other healthy endpoints (for failover), then by unhealthy endpoints as a last resort.
+	 */
+	List<Endpoint> select() {
+		if ( endpoints.size() > 1 && healthCheck == null )
+			scheduleHealthCheck();
+
+		List<Endpoint> healthy = new ArrayList<Endpoint>( endpoints.size() );
+		List<Endpoint> unhealthy = new ArrayList<Endpoint>();
+		for ( Endpoint ep : endpoints ) {
+			if ( ep.healthy )
+				healthy.add( ep );
+			else
+				unhealthy.add( ep );
+		}
+
+		if ( !healthy.isEmpty() ) {
+			int first = choose( healthy );
+			// Rotate so that chosen endpoint is first, and failover order stays deterministic
+			Collections.rotate( healthy, -first );
+		}
+		healthy.addAll( unhealthy );
+		return healthy;
+	}
+
+	private int choose( List<Endpoint> candidates ) {
+		int n = candidates.size();
+		int start = ( nextIndex.getAndIncrement() & Integer.MAX_VALUE ) % n;
+		switch ( policy ) {
+		case LEAST_OUTSTANDING: {
+			int best = start;
+			for ( int i = 1; i < n; i++ ) {
+				int idx = ( start + i ) % n;
+				if ( candidates.get( idx ).outstanding.get() < candidates.get( best ).outstanding.get() )
+					best = idx;
+			}
+			return best;
+		}
+		case LATENCY_WEIGHTED: {
+			double[] weights = new double[n];
+			double total = 0;
+			for ( int i = 0; i < n; i++ ) {
+				// Endpoints without latency sample yet are given the best weight
+				double latency = candidates.get( i ).latency;
+				weights[i] = 1.0 / Math.max( latency, 0.1 );
+				total += weights[i];
+			}
+			double r;
+			synchronized ( random ) {
+				r = random.nextDouble() * total;
+			}
+			for ( int i = 0; i < n; i++ ) {
+				r -= weights[i];
+				if ( r < 0 )
+					return i;
+			}
+			return n - 1;
+		}
+		default:
+			return start;
+		}
+	}
+
+	/**
+	 * Records a successful connection acquisition on an endpoint
+	 * @param latency Time taken to acquire connection, in milliseconds
+	 */
+	void succeeded( Endpoint ep, double latency ) {
+		ep.latency = ep.latency == 0 ? latency : ep.latency + LATENCY_ALPHA * ( latency - ep.latency );
+		ep.outstanding.incrementAndGet();
+	}
+
+	/**
+	 * Marks an endpoint unhealthy after it failed to provide a connection
+	 */
+	void failed( Endpoint ep, RserveException e ) {
+		logger.log( Level.WARNING, "Rserve endpoint " + ep + " is unavailable", e );
+		ep.healthy = false;
+		scheduleHealthCheck();
+	}
+
+	/**
+	 * Stops the health check of this cluster
+	 */
+	synchronized void close() {
+		closed = true;
+		if ( healthCheck != null ) {
+			healthCheck.cancel( false );
+			healthCheck = null;
+		}
+	}
+
+	/**
+	 * Schedules the next health check, unless one is already scheduled or the cluster is closed
+	 */
+	private synchronized void scheduleHealthCheck() {
+		if ( closed || healthCheck != null )
+			return;
+		try {
+			healthCheck = getHealthChecker().schedule( new Runnable() {
+				@Override
+				public void run() {
+					checkHealth();
+				}
+			}, healthCheckInterval, TimeUnit.MILLISECONDS );
+		} catch ( RejectedExecutionException e ) {
+			// Health checker is shut down
+		}
+	}
+
+	/**
+	 * Probes the endpoints: unhealthy endpoints are used again once they accept connections, and, when there 
+	 * are several endpoints, healthy endpoints that no longer accept connections are marked unhealthy. The 
+	 * check is scheduled again as long as it is needed.
+	 */
+	private void checkHealth() {
+		boolean multiple = endpoints.size() > 1;
+		boolean allHealthy = true;
+		for ( Endpoint ep : endpoints ) {
+			if ( closed )
+				return;
+			if ( !ep.healthy || multiple ) {
+				boolean available = probe( ep );
+				if ( available && !ep.healthy ) {
+					logger.info( "Rserve endpoint " + ep + " is available again" );
+					ep.latency = 0;
+					ep.healthy = true;
+				} else if ( !available && ep.healthy ) {
+					logger.warning( "Rserve endpoint " + ep + " failed health check" );
+					ep.healthy = false;
+				}
+			}
+			allHealthy &= ep.healthy;
+		}
+		synchronized ( this ) {
+			healthCheck = null;
+		}
+		if ( multiple || !allHealthy )
+			scheduleHealthCheck();
+	}
+
+	/**
+	 * Checks whether a connection can be opened to an endpoint
+	 */
+	private static boolean probe( Endpoint ep ) {
+		try {
+			RConnection rconn = ep.port > 0 ? new RConnection( ep.host, ep.port ) : new RConnection( ep.host );
+			rconn.close();
+			return true;
+		} catch ( RserveException e ) {
+			return false;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getHealthChecker() {
+		if ( healthChecker == null ) {
+			healthChecker = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "Rserve health check" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+		return healthChecker;
+	}
+
+	static synchronized void shutdown() {
+		if ( healthChecker != null ) {
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+	}
+
+	/**
+	 * An Rserve host and port, and its load statistics
+	 */
+	static class Endpoint {
+		final String host;
+		final int port;
+
+		/** Number of connections currently borrowed from this endpoint */
+		final AtomicInteger outstanding = new AtomicInteger();
+		/** Moving average of connection acquisition time, in milliseconds; 0 if unknown */
+		volatile double latency;
+		volatile boolean healthy = true;
+
+		Endpoint( String host, int port ) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * Records that a connection obtained from this endpoint is no longer in use
+		 */
+		void released() {
+			outstanding.decrementAndGet();
+		}
+
+		@Override
+		public String toString() {
+			return port > 0 ? host + ":" + port : host;
+		}
+	}
+}
@@ -6,7 +6,15 @@
 
 package com.actuate.birt.script.ext.rserve;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.rosuda.REngine.Rserve.RConnection;
@@ -24,55 +32,316 @@ public class RserveConnectionFactory {
 	static public String PROP_USER = "user";
 	static public String PROP_PASSWORD = "password";
 	
+	/** Minimum number of idle connections kept per host/port/user; default 0 */
+	static public String PROP_POOL_MIN_IDLE = "pool.minIdle";
+	/** Maximum number of idle connections kept per host/port/user; 0 disables pooling. Default 8 */
+	static public String PROP_POOL_MAX_IDLE = "pool.maxIdle";
+	/** Time (ms) after which an idle connection is closed; default 5 minutes */
+	static public String PROP_POOL_IDLE_TIMEOUT = "pool.idleTimeout";
+	/** Time (ms) after which a connection is retired, regardless of use; default 30 minutes */
+	static public String PROP_POOL_MAX_LIFETIME = "pool.maxLifetime";
+	/** Whether to check that an idle connection is still alive before handing it out; default true */
+	static public String PROP_POOL_VALIDATE = "pool.validateOnBorrow";
+	
+	/** Comma-separated list of R packages to load when a connection is opened */
+	static public String PROP_INIT_PACKAGES = "init.packages";
+	/** R script run when a connection is opened, after loading the init packages. Variables it defines
+	 *  are kept when the workspace is cleared for reuse */
+	static public String PROP_INIT_SCRIPT = "init.script";
+	
+	/** Load balancing policy when "host" lists several endpoints: roundRobin (default), leastOutstanding or latencyWeighted */
+	static public String PROP_LOAD_BALANCING = "loadBalancing";
+	/** Time (ms) between two connection attempts to an unavailable endpoint; default 10 seconds */
+	static public String PROP_HEALTH_CHECK_INTERVAL = "healthCheckInterval";
+	
+	/** Identifier of a shared R session (e.g. one per report execution); connections obtained with the same
+	 *  session ID share one server-side R workspace until the session is released */
+	static public String PROP_SESSION_ID = "sessionId";
+	/** R script run once when a shared session is created, e.g. to load libraries and shared data */
+	static public String PROP_SESSION_INIT_SCRIPT = "sessionInitScript";
+	/** Time (ms) after which a shared session that is not in use is released; default 30 minutes */
+	static public String PROP_SESSION_TIMEOUT = "sessionTimeout";
+	
+	private static final long DEFAULT_HEALTH_CHECK_INTERVAL = 10000L;
+	private static final long DEFAULT_SESSION_TIMEOUT = 1800000L;
+	/** Interval between two checks for expired sessions, in milliseconds */
+	private static final long SESSION_REAP_INTERVAL = 60000L;
+	
+	private static RConnectionPool pool = new RConnectionPool();
+	private static ConcurrentHashMap<String, RserveCluster> clusters = new ConcurrentHashMap<String, RserveCluster>();
+	private static ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private static ScheduledExecutorService sessionReaper;
+	
 	public RserveConnectionFactory() {
 	}
 
 	/**
 	 * Obtain a connection to Rserve. Returned RConnection is enclosed in an AutoCloseable wrapper. Call
-	 *    the close method on the returned wrapper object to dispose of the RConnection.
-	 * @param connectionProperties Map that contains "host", "port", and, optionally, "user"and "password" properties 
+	 *    the close method on the returned wrapper object to release the RConnection. Connections are pooled
+	 *    per host, port and user; closing the wrapper clears the R workspace and returns the connection 
+	 *    to the pool.
+	 * @param connectionProperties Map that contains "host", "port", and, optionally, "user"and "password" properties,
+	 *    as well as the "pool.*" properties to tune connection pooling. "host" can be a comma-separated list of
+	 *    host[:port] entries, in which case connections are spread across these endpoints according to the 
+	 *    "loadBalancing" policy, and unavailable endpoints are skipped.
+	 *    If "sessionId" is set, all connections obtained with that ID share a single R session, which is 
+	 *    initialized once by "sessionInitScript"; closing the wrapper then leaves the session and its workspace
+	 *    intact until releaseSession is called, or until the session has been unused for "sessionTimeout".
+	 *    Engines of one session must not evaluate scripts concurrently.
 	 * @throws RserveException 
 	 */
 	public AutoCloseable getConnection( Map<String, Object> connectionProperties ) 
 			throws RserveException {
+		String sessionId = (String) connectionProperties.get( PROP_SESSION_ID );
+		if ( sessionId != null && !sessionId.isEmpty() )
+			return getSessionConnection( sessionId, connectionProperties );
+		return openConnection( connectionProperties );
+	}
+	
+	private RConnectionWrapper openConnection( Map<String, Object> connectionProperties ) 
+			throws RserveException {
 		String host = (String) connectionProperties.get( PROP_HOST );
 		if ( host == null || host.isEmpty() ) {
 			throw new IllegalArgumentException( PROP_HOST );
 		}
 		
-		int port = 0;
-		Object portObj = connectionProperties.get(PROP_PORT);
-		if ( portObj != null ) {
-			if ( portObj instanceof Number )
-				port = ((Number) portObj).intValue();
-			else 
-				port = Integer.parseInt( portObj.toString() );
-		}
+		int port = getIntProperty( connectionProperties, PROP_PORT, 0 );
 		
 		String user = (String) connectionProperties.get( PROP_USER);
 		String password = (String) connectionProperties.get( PROP_PASSWORD);
 		
 		logger.info( "getConnection: host=" + host + ", port=" + port + ", user=" + user);
 		
-		RConnection rconn;
-		if ( port > 0 )
-			rconn = new RConnection(host, port);
-		else 
-			rconn = new RConnection(host);
+		RserveCluster cluster = getCluster( host, port, connectionProperties );
+		RConnectionPool.PoolConfig config = getPoolConfig( connectionProperties );
+		String initScript = getInitScript( connectionProperties );
 		
-		if ( rconn.needLogin() ) {
-			// It appears that we must do the login() call, otherwise  communication with
-			// Rserve may get messed up and the connection will hang. 
-			// So send empty user name/password if none supplied
-			if (user == null)
-				user = "";
-			if (password ==  null)
-				password = "";
-			rconn.login( user, password );
+		// Try endpoints in the order suggested by the load balancer, until one provides a connection
+		RserveException lastError = null;
+		for ( RserveCluster.Endpoint ep : cluster.select() ) {
+			long start = System.nanoTime();
+			RConnectionPool.PooledConnection pc;
+			try {
+				pc = pool.borrow( new RConnectionPool.PoolKey( ep.host, ep.port, user, password, initScript ), config );
+			} catch ( RserveException e ) {
+				cluster.failed( ep, e );
+				lastError = e;
+				continue;
+			}
+			long elapsed = System.nanoTime() - start;
+			cluster.succeeded( ep, elapsed / 1e6 );
+			if ( RMetrics.isEnabled() )
+				RMetrics.connectionAcquired( ep.toString(), elapsed );
+			
+			// Wrap RConnection in AutoCloseable interface
+			return new RConnectionWrapper( pc, config.maxIdle > 0 ? pool : null, ep );
+		}
+		throw lastError;
+	}
+	
+	/**
+	 * Starts opening warm connections in the background, so that connections are ready before they are
+	 * first requested. "pool.minIdle" initialized connections are kept idle for each endpoint.
+	 * @param connectionProperties Same properties as for getConnection
+	 */
+	public void warmUp( Map<String, Object> connectionProperties ) {
+		String host = (String) connectionProperties.get( PROP_HOST );
+		if ( host == null || host.isEmpty() ) {
+			throw new IllegalArgumentException( PROP_HOST );
 		}
+		int port = getIntProperty( connectionProperties, PROP_PORT, 0 );
+		String user = (String) connectionProperties.get( PROP_USER);
+		String password = (String) connectionProperties.get( PROP_PASSWORD);
+		RConnectionPool.PoolConfig config = getPoolConfig( connectionProperties );
+		String initScript = getInitScript( connectionProperties );
 		
-		// Wrap RConnection in AutoCloseable interface
-		return new RConnectionWrapper(rconn);
+		for ( RserveCluster.Endpoint ep : getCluster( host, port, connectionProperties ).getEndpoints() )
+			pool.warmUp( new RConnectionPool.PoolKey( ep.host, ep.port, user, password, initScript ), config );
+	}
+	
+	/**
+	 * Builds the script that initializes new connections from the init properties; returns null if none
+	 */
+	private static String getInitScript( Map<String, Object> connectionProperties ) {
+		StringBuilder sb = new StringBuilder();
+		String packages = (String) connectionProperties.get( PROP_INIT_PACKAGES );
+		if ( packages != null ) {
+			for ( String pkg : packages.split( "," ) ) {
+				pkg = pkg.trim();
+				if ( pkg.isEmpty() )
+					continue;
+				if ( !pkg.matches( "[A-Za-z][A-Za-z0-9.]*" ) )
+					throw new IllegalArgumentException( "Invalid R package name: " + pkg );
+				sb.append( "suppressPackageStartupMessages(library(" ).append( pkg ).append( "))\n" );
+			}
+		}
+		String script = (String) connectionProperties.get( PROP_INIT_SCRIPT );
+		if ( script != null && !script.isEmpty() )
+			sb.append( script.replace( "\r\n", "\n" ) );
+		return sb.length() == 0 ? null : sb.toString();
+	}
+	
+	/**
+	 * Gets a connection to a shared session, creating and initializing the session on first use
+	 */
+	private AutoCloseable getSessionConnection( String sessionId, Map<String, Object> connectionProperties ) 
+			throws RserveException {
+		String target = connectionProperties.get( PROP_HOST ) + "|" + connectionProperties.get( PROP_PORT ) 
+				+ "|" + connectionProperties.get( PROP_USER );
+		String password = (String) connectionProperties.get( PROP_PASSWORD );
+		Session session = sessions.get( sessionId );
+		if ( session == null ) {
+			session = new Session( sessionId, target, password,
+					getLongProperty( connectionProperties, PROP_SESSION_TIMEOUT, DEFAULT_SESSION_TIMEOUT ) );
+			Session existing = sessions.putIfAbsent( sessionId, session );
+			if ( existing != null )
+				session = existing;
+			else
+				startSessionReaper();
+		}
+		if ( !session.isBoundTo( target, password ) )
+			throw new IllegalArgumentException( "R session " + sessionId + " is bound to a different Rserve host or user" );
+		
+		synchronized ( session ) {
+			if ( session.released )
+				// Released concurrently; start over with a new session
+				return getSessionConnection( sessionId, connectionProperties );
+			if ( session.connection != null && session.connection.isBroken() ) {
+				// An evaluation was cancelled; the session's state is lost
+				logger.warning( "R session " + sessionId + " lost its connection; re-creating it" );
+				session.discardConnection();
+			}
+			if ( session.connection == null ) {
+				logger.info( "Create R session " + sessionId );
+				RConnectionWrapper conn = openConnection( connectionProperties );
+				String initScript = (String) connectionProperties.get( PROP_SESSION_INIT_SCRIPT );
+				if ( initScript != null && !initScript.isEmpty() ) {
+					try {
+						conn.getRConnection().voidEval( initScript.replace( "\r\n", "\n" ) );
+					} catch ( RserveException e ) {
+						conn.close();
+						throw e;
+					}
+				}
+				session.connection = conn;
+			}
+			session.refCount++;
+			return new RConnectionWrapper( session, session.generation );
+		}
+	}
+	
+	/**
+	 * Releases a shared R session: its connection is returned to the pool (which clears the workspace) 
+	 * or closed. If connections of the session are still open, this is deferred until they are all closed;
+	 * in the meantime, new connections with the same session ID get a new session.
+	 * @param sessionId The "sessionId" connection property the session was created with
+	 * @return Whether the session existed
+	 */
+	public static boolean releaseSession( String sessionId ) {
+		Session session = sessions.remove( sessionId );
+		if ( session == null )
+			return false;
+		session.release();
+		return true;
+	}
+	
+	private static void releaseExpiredSessions() {
+		long now = System.currentTimeMillis();
+		for ( Session session : sessions.values() ) {
+			if ( session.isExpired( now ) && sessions.remove( session.id, session ) ) {
+				logger.info( "Release idle R session " + session.id );
+				session.release();
+			}
+		}
+	}
+	
+	/**
+	 * Starts the background task that releases expired sessions, if it is not running
+	 */
+	private static synchronized void startSessionReaper() {
+		if ( sessionReaper != null )
+			return;
+		sessionReaper = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "R session reaper" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+		sessionReaper.scheduleWithFixedDelay( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					releaseExpiredSessions();
+				} catch ( RuntimeException e ) {
+					logger.log( Level.WARNING, "Failed to release idle R sessions", e );
+				}
+			}
+		}, SESSION_REAP_INTERVAL, SESSION_REAP_INTERVAL, TimeUnit.MILLISECONDS );
+	}
+	
+	private static synchronized void stopSessionReaper() {
+		if ( sessionReaper != null ) {
+			sessionReaper.shutdownNow();
+			sessionReaper = null;
+		}
+	}
+	
+	private RserveCluster getCluster( String host, int port, Map<String, Object> connectionProperties ) {
+		RserveCluster.Policy policy = RserveCluster.Policy.parse( (String) connectionProperties.get( PROP_LOAD_BALANCING ) );
+		String key = host + "|" + port + "|" + policy;
+		long healthCheckInterval = getLongProperty( connectionProperties, PROP_HEALTH_CHECK_INTERVAL, 
+				DEFAULT_HEALTH_CHECK_INTERVAL );
+		RserveCluster cluster = clusters.get( key );
+		if ( cluster == null ) {
+			cluster = new RserveCluster( RserveCluster.parseEndpoints( host, port ), policy, healthCheckInterval );
+			RserveCluster existing = clusters.putIfAbsent( key, cluster );
+			if ( existing != null )
+				cluster = existing;
+		}
+		cluster.setHealthCheckInterval( healthCheckInterval );
+		return cluster;
+	}
+	
+	/**
+	 * Closes all idle pooled connections
+	 */
+	static void shutdownPool() {
+		stopSessionReaper();
+		for ( String sessionId : sessions.keySet() )
+			releaseSession( sessionId );
+		pool.shutdown();
+		for ( RserveCluster cluster : clusters.values() )
+			cluster.close();
+		clusters.clear();
+		RserveCluster.shutdown();
+		REvalWatchdog.shutdown();
+	}
+	
+	private RConnectionPool.PoolConfig getPoolConfig( Map<String, Object> connectionProperties ) {
+		RConnectionPool.PoolConfig config = new RConnectionPool.PoolConfig();
+		config.minIdle = getIntProperty( connectionProperties, PROP_POOL_MIN_IDLE, config.minIdle );
+		config.maxIdle = getIntProperty( connectionProperties, PROP_POOL_MAX_IDLE, config.maxIdle );
+		config.idleTimeout = getLongProperty( connectionProperties, PROP_POOL_IDLE_TIMEOUT, config.idleTimeout );
+		config.maxLifetime = getLongProperty( connectionProperties, PROP_POOL_MAX_LIFETIME, config.maxLifetime );
+		Object validate = connectionProperties.get( PROP_POOL_VALIDATE );
+		if ( validate != null )
+			config.validateOnBorrow = Boolean.parseBoolean( validate.toString() );
+		return config;
+	}
+	
+	private static int getIntProperty( Map<String, Object> props, String key, int defaultValue ) {
+		return (int) getLongProperty( props, key, defaultValue );
+	}
+	
+	private static long getLongProperty( Map<String, Object> props, String key, long defaultValue ) {
+		Object value = props.get( key );
+		if ( value == null )
+			return defaultValue;
+		if ( value instanceof Number )
+			return ((Number) value).longValue();
+		return Long.parseLong( value.toString() );
 	}
 	
 	/**
@@ -80,22 +349,240 @@ public class RserveConnectionFactory {
 	 */
 	public static class RConnectionWrapper implements AutoCloseable {
 		private RConnection rConnection;
+		private RConnectionPool.PooledConnection pooled;
+		private RConnectionPool pool;
+		private RserveCluster.Endpoint endpoint;
+		private Session session;
+		/** Generation of the session's connection this wrapper shares (see Session.generation) */
+		private int generation;
+		/** Void statements queued by RScriptEngine in pipelined mode, to be run on this connection */
+		private final List<String> pipeline = new ArrayList<String>();
+		/** Number of queued statements discarded when the wrapper was closed, not yet reported */
+		private int discarded;
 
 		public RConnectionWrapper(RConnection rconn) {
 			rConnection = rconn;
 		}
+		
+		/**
+		 * @param pool Pool to return the connection to when closed; if null, the connection is closed
+		 * @param endpoint Endpoint the connection was obtained from
+		 */
+		RConnectionWrapper(RConnectionPool.PooledConnection pc, RConnectionPool pool, RserveCluster.Endpoint endpoint) {
+			this.rConnection = pc.conn;
+			this.pooled = pc;
+			this.pool = pool;
+			this.endpoint = endpoint;
+		}
+		
+		/**
+		 * Creates a wrapper that shares the connection of a session
+		 * @param generation Current generation of the session's connection
+		 */
+		RConnectionWrapper(Session session, int generation) {
+			this.rConnection = session.connection.getRConnection();
+			this.session = session;
+			this.generation = generation;
+		}
 
+		/**
+		 * Releases the RConnection. A pooled connection is returned to its pool; otherwise it is closed.
+		 * The connection of a shared session is left open for other users of the session. Statements still 
+		 * queued in pipelined mode are discarded, since the connection may next be used by another caller.
+		 */
 		@Override
 		public void close() {
-			if ( rConnection != null ) {
-				rConnection.close();
+			synchronized ( pipeline ) {
+				if ( !pipeline.isEmpty() ) {
+					logger.warning( "Discarding " + pipeline.size() + " queued R statement(s) on connection close" );
+					discarded += pipeline.size();
+					pipeline.clear();
+				}
+			}
+			if ( session != null ) {
+				if ( rConnection != null )
+					session.unref( generation );
+				rConnection = null;
+				session = null;
+			} else if ( rConnection != null ) {
+				if ( pool != null )
+					pool.release( pooled );
+				else
+					rConnection.close();
+				if ( endpoint != null )
+					endpoint.released();
 				rConnection = null;
+				pooled = null;
 			}
 		}
 		
+		/**
+		 * Gets the wrapped connection; null once the wrapper is closed, or once the connection of its shared 
+		 * session has been replaced
+		 */
 		public RConnection getRConnection() {
+			if ( session != null && !session.isCurrent( generation ) )
+				return null;
 			return rConnection;
 		}
+		
+		/**
+		 * Queues a void statement to be run on this connection
+		 * @return Number of queued statements
+		 * @throws IllegalStateException if the wrapper is closed
+		 */
+		int enqueue( String statement ) {
+			synchronized ( pipeline ) {
+				if ( rConnection == null )
+					throw new IllegalStateException( "R connection is closed" );
+				pipeline.add( statement );
+				return pipeline.size();
+			}
+		}
+		
+		/**
+		 * Removes and returns the queued statements
+		 */
+		String[] dequeueAll() {
+			synchronized ( pipeline ) {
+				String[] ret = pipeline.toArray( new String[pipeline.size()] );
+				pipeline.clear();
+				return ret;
+			}
+		}
+		
+		/**
+		 * Gets the number of queued statements discarded by close(), and resets it
+		 */
+		int takeDiscarded() {
+			synchronized ( pipeline ) {
+				int ret = discarded;
+				discarded = 0;
+				return ret;
+			}
+		}
+		
+		/**
+		 * Gets the pooled connection this wrapper holds; null if it wraps a connection that was not obtained 
+		 * from the factory
+		 */
+		RConnectionPool.PooledConnection getPooledConnection() {
+			if ( session != null ) {
+				RConnectionWrapper shared = session.getConnection( generation );
+				return shared == null ? null : shared.pooled;
+			}
+			return pooled;
+		}
+		
+		/**
+		 * Identifies the Rserve server, user and init script of the connection, to key cached results; null if 
+		 * the connection was not obtained from the factory, or shares a session. The workspace of a session 
+		 * outlives each of its connections, so the results of its scripts are never cached.
+		 */
+		String getTarget() {
+			if ( session != null )
+				return null;
+			RConnectionPool.PooledConnection pc = getPooledConnection();
+			if ( pc == null )
+				return null;
+			RConnectionPool.PoolKey key = pc.key;
+			return key.host + "|" + key.port + "|" + key.user + "|" + ( key.initScript == null ? "" : key.initScript );
+		}
+		
+		/**
+		 * Checks whether the connection can no longer be used, e.g. because an evaluation was cancelled
+		 */
+		boolean isBroken() {
+			RConnectionPool.PooledConnection pc = getPooledConnection();
+			return ( pc != null && pc.broken ) || ( rConnection != null && !rConnection.isConnected() );
+		}
+	}
+	
+	/**
+	 * A server-side R session shared by all connections obtained with the same session ID
+	 */
+	static class Session {
+		final String id;
+		/** Host, port and user the session is connected to */
+		final String target;
+		private final String password;
+		final long timeout;
+		RConnectionWrapper connection;
+		/** Incremented each time the connection is discarded, so that wrappers of an earlier connection can 
+		 *  neither use the current one nor release references to it */
+		int generation;
+		/** Number of open wrappers of the current connection */
+		int refCount;
+		long lastUsedTime = System.currentTimeMillis();
+		boolean released;
+		
+		Session( String id, String target, String password, long timeout ) {
+			this.id = id;
+			this.target = target;
+			this.password = password;
+			this.timeout = timeout;
+		}
+		
+		/**
+		 * Checks whether the session was created for a host, port, user and password
+		 */
+		boolean isBoundTo( String target, String password ) {
+			return this.target.equals( target ) 
+					&& ( this.password == null ? password == null : this.password.equals( password ) );
+		}
+		
+		/**
+		 * Checks whether a wrapper created for a generation of the connection may still use it
+		 */
+		synchronized boolean isCurrent( int generation ) {
+			return this.generation == generation && connection != null;
+		}
+		
+		/**
+		 * Gets the connection of a generation; null if it has been discarded
+		 */
+		synchronized RConnectionWrapper getConnection( int generation ) {
+			return this.generation == generation ? connection : null;
+		}
+		
+		/**
+		 * Releases a reference to a generation of the connection. The connection of a released session is 
+		 * returned when its last reference is released.
+		 */
+		synchronized void unref( int generation ) {
+			if ( generation != this.generation )
+				return;
+			if ( refCount > 0 )
+				refCount--;
+			lastUsedTime = System.currentTimeMillis();
+			if ( released && refCount == 0 )
+				discardConnection();
+		}
+		
+		synchronized boolean isExpired( long now ) {
+			return refCount == 0 && timeout > 0 && now - lastUsedTime > timeout;
+		}
+		
+		synchronized void release() {
+			released = true;
+			if ( refCount > 0 )
+				logger.info( "R session " + id + " will be released when its " + refCount + " open connection(s) are "
+						+ "closed" );
+			else
+				discardConnection();
+		}
+		
+		/**
+		 * Closes the current connection, and starts a new generation; wrappers of the connection become unusable
+		 */
+		synchronized void discardConnection() {
+			if ( connection != null ) {
+				connection.close();
+				connection = null;
+			}
+			generation++;
+			refCount = 0;
+		}
 	}
 	
 }
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPFactor;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPList;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+
+/**
+ * Generates synthetic vectors and data frames for the benchmarks. Data is generated from a fixed seed so
+ * that runs are comparable. naDensity is the fraction of values that are NA (or null).
+ */
+final class BenchmarkData {
+
+	private static final String[] LEVELS = { "north", "south", "east", "west", "central" };
+
+	private BenchmarkData() {
+	}
+
+	static Random random() {
+		return new Random( 42 );
+	}
+
+	static double[] doubles( int size, double naDensity ) {
+		Random r = random();
+		double[] values = new double[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextDouble() < naDensity ? REXPDouble.NA : r.nextGaussian() * 1000;
+		return values;
+	}
+
+	static int[] ints( int size, double naDensity ) {
+		Random r = random();
+		int[] values = new int[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextDouble() < naDensity ? REXPInteger.NA : r.nextInt( 100000 );
+		return values;
+	}
+
+	static String[] strings( int size, double naDensity ) {
+		Random r = random();
+		String[] values = new String[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextDouble() < naDensity ? null : "value" + r.nextInt( 100000 );
+		return values;
+	}
+
+	static int[] factorCodes( int size, double naDensity ) {
+		Random r = random();
+		int[] codes = new int[size];
+		for ( int i = 0; i < size; i++ )
+			codes[i] = r.nextDouble() < naDensity ? REXPInteger.NA : r.nextInt( LEVELS.length ) + 1;
+		return codes;
+	}
+
+	static Integer[] boxedInts( int size, double naDensity ) {
+		int[] ints = ints( size, naDensity );
+		Integer[] values = new Integer[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = ints[i] == REXPInteger.NA ? null : ints[i];
+		return values;
+	}
+
+	static Double[] boxedDoubles( int size, double naDensity ) {
+		double[] doubles = doubles( size, naDensity );
+		Double[] values = new Double[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = REXPDouble.isNA( doubles[i] ) ? null : doubles[i];
+		return values;
+	}
+
+	static long[] longs( int size ) {
+		Random r = random();
+		long[] values = new long[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextLong() >> 16;
+		return values;
+	}
+
+	static float[] floats( int size ) {
+		Random r = random();
+		float[] values = new float[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextFloat();
+		return values;
+	}
+
+	static short[] shorts( int size ) {
+		Random r = random();
+		short[] values = new short[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = (short) r.nextInt();
+		return values;
+	}
+
+	static boolean[] booleans( int size ) {
+		Random r = random();
+		boolean[] values = new boolean[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextBoolean();
+		return values;
+	}
+
+	static BigDecimal[] bigDecimals( int size, double naDensity ) {
+		Random r = random();
+		BigDecimal[] values = new BigDecimal[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextDouble() < naDensity ? null : BigDecimal.valueOf( r.nextInt( 10000000 ), 2 );
+		return values;
+	}
+
+	static Date[] dates( int size, double naDensity ) {
+		Random r = random();
+		Date[] values = new Date[size];
+		for ( int i = 0; i < size; i++ )
+			values[i] = r.nextDouble() < naDensity ? null : new Date( 1500000000000L + r.nextInt() * 1000L );
+		return values;
+	}
+
+	/**
+	 * Object[] holding numbers of mixed types, as produced by BIRT data set rows
+	 */
+	static Object[] mixedNumbers( int size, double naDensity ) {
+		Random r = random();
+		Object[] values = new Object[size];
+		for ( int i = 0; i < size; i++ ) {
+			if ( r.nextDouble() < naDensity )
+				values[i] = null;
+			else if ( ( i & 1 ) == 0 )
+				values[i] = r.nextInt( 100000 );
+			else
+				values[i] = r.nextDouble();
+		}
+		return values;
+	}
+
+	/**
+	 * Number of columns of generated matrices; the number of rows is chosen to give the requested size
+	 */
+	static int matrixColumns( int size ) {
+		return size >= 10 ? 10 : 1;
+	}
+
+	static Object[] doubleRows( int size, double naDensity ) {
+		int cols = matrixColumns( size );
+		int rows = size / cols;
+		double[] values = doubles( rows * cols, naDensity );
+		// Use Object[] rather than double[][] to exercise the generic row conversion
+		Object[] matrix = new Object[rows];
+		for ( int r = 0; r < rows; r++ ) {
+			double[] row = new double[cols];
+			System.arraycopy( values, r * cols, row, 0, cols );
+			matrix[r] = row;
+		}
+		return matrix;
+	}
+
+	static REXP doubleMatrix( int size, double naDensity ) {
+		int cols = matrixColumns( size );
+		return new REXPDouble( doubles( size / cols * cols, naDensity ), dim( size / cols, cols ) );
+	}
+
+	static REXP intMatrix( int size, double naDensity ) {
+		int cols = matrixColumns( size );
+		return new REXPInteger( ints( size / cols * cols, naDensity ), dim( size / cols, cols ) );
+	}
+
+	private static REXPList dim( int rows, int cols ) {
+		return new REXPList( new REXPInteger( new int[] { rows, cols } ), "dim" );
+	}
+
+	/**
+	 * A Java data frame: map of equal-length columns of each supported type
+	 */
+	static Map<String, Object> columns( int size, double naDensity ) {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put( "id", ints( size, 0 ) );
+		map.put( "amount", doubles( size, naDensity ) );
+		map.put( "count", boxedInts( size, naDensity ) );
+		map.put( "name", strings( size, naDensity ) );
+		return map;
+	}
+
+	/**
+	 * An R data frame with integer, double, character and factor columns
+	 */
+	static REXP dataFrame( int size, double naDensity ) throws REXPMismatchException {
+		RList list = new RList( new REXP[] {
+				new REXPInteger( ints( size, 0 ) ),
+				new REXPDouble( doubles( size, naDensity ) ),
+				new REXPString( strings( size, naDensity ) ),
+				new REXPFactor( factorCodes( size, naDensity ), LEVELS )
+			}, new String[] { "id", "amount", "name", "region" } );
+		return REXP.createDataFrame( list );
+	}
+}
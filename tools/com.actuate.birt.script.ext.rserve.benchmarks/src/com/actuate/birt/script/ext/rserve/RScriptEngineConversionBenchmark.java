@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+
+/**
+ * Benchmarks of the Java to REXP (and data frame to Java) conversions in RScriptEngine. No Rserve
+ * connection is needed; the engine's conversion methods are called directly. Each benchmark only generates 
+ * the input it converts, so that the largest sizes fit in memory. Benchmarks whose name ends with 
+ * "_reflective" run the former, reflection-based conversion (see ReflectiveArrayConverter), as the baseline
+ * of the conversion specialized by component type.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+public class RScriptEngineConversionBenchmark {
+
+	private static final RScriptEngine engine = new RScriptEngine( new RScriptEngineFactory() );
+
+	/**
+	 * Size and NA density of the input; each subclass generates one input
+	 */
+	@State( Scope.Benchmark )
+	public abstract static class Input {
+		@Param( { "1", "1000", "1000000", "10000000" } )
+		public int size;
+
+		@Param( { "0.0", "0.1", "0.5" } )
+		public double naDensity;
+	}
+
+	public static class Ints extends Input {
+		int[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.ints( size, naDensity );
+		}
+	}
+
+	public static class Doubles extends Input {
+		double[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.doubles( size, naDensity );
+		}
+	}
+
+	public static class BoxedInts extends Input {
+		Integer[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.boxedInts( size, naDensity );
+		}
+	}
+
+	public static class BoxedDoubles extends Input {
+		Double[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.boxedDoubles( size, naDensity );
+		}
+	}
+
+	public static class MixedNumbers extends Input {
+		Object[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.mixedNumbers( size, naDensity );
+		}
+	}
+
+	public static class Strings extends Input {
+		String[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.strings( size, naDensity );
+		}
+	}
+
+	public static class Longs extends Input {
+		long[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.longs( size );
+		}
+	}
+
+	public static class Floats extends Input {
+		float[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.floats( size );
+		}
+	}
+
+	public static class Shorts extends Input {
+		short[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.shorts( size );
+		}
+	}
+
+	public static class Booleans extends Input {
+		boolean[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.booleans( size );
+		}
+	}
+
+	public static class BigDecimals extends Input {
+		BigDecimal[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.bigDecimals( size, naDensity );
+		}
+	}
+
+	public static class Dates extends Input {
+		Date[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.dates( size, naDensity );
+		}
+	}
+
+	public static class DoubleRows extends Input {
+		Object[] values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.doubleRows( size, naDensity );
+		}
+	}
+
+	public static class Columns extends Input {
+		Map<String, Object> values;
+
+		@Setup
+		public void setup() {
+			values = BenchmarkData.columns( size, naDensity );
+		}
+	}
+
+	public static class DataFrame extends Input {
+		REXP values;
+
+		@Setup
+		public void setup() throws REXPMismatchException {
+			values = BenchmarkData.dataFrame( size, naDensity );
+		}
+	}
+
+	@Benchmark
+	public REXP objectToREXP_map( Columns in ) throws Exception {
+		return engine.objectToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_ints( Ints in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_doubles( Doubles in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Integers( BoxedInts in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Integers_reflective( BoxedInts in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Doubles( BoxedDoubles in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Doubles_reflective( BoxedDoubles in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_mixedNumbers( MixedNumbers in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Strings( Strings in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Strings_reflective( Strings in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_longs( Longs in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_longs_reflective( Longs in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_floats( Floats in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_floats_reflective( Floats in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_shorts( Shorts in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_shorts_reflective( Shorts in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_booleans( Booleans in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_booleans_reflective( Booleans in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_BigDecimals( BigDecimals in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_BigDecimals_reflective( BigDecimals in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Dates( Dates in ) {
+		return engine.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP arrayToREXP_Dates_reflective( Dates in ) {
+		return ReflectiveArrayConverter.arrayToREXP( in.values );
+	}
+
+	@Benchmark
+	public REXP toDoubleMatrix( DoubleRows in ) {
+		return engine.toDoubleMatrix( in.values );
+	}
+
+	@Benchmark
+	public REXP toDoubleMatrix_reflective( DoubleRows in ) {
+		return ReflectiveArrayConverter.toDoubleMatrix( in.values );
+	}
+
+	@Benchmark
+	public REXP mapToREXP( Columns in ) throws Exception {
+		return engine.mapToREXP( in.values );
+	}
+
+	@Benchmark
+	public Map<String, Object> mapFromDataFrame( DataFrame in ) throws Exception {
+		return engine.mapFromDataFrame( in.values );
+	}
+
+	@Benchmark
+	public Map<String, Object> mapFromDataFrameParallel( DataFrame in ) throws Exception {
+		return engine.mapFromDataFrame( in.values, false, RColumnConverter.DEFAULT_PARALLEL_THRESHOLD );
+	}
+
+	@Benchmark
+	public Map<String, Object> mapFromDataFrameFactors( DataFrame in ) throws Exception {
+		return engine.mapFromDataFrame( in.values, true, 0 );
+	}
+
+	@Benchmark
+	public Map<String, Object> mapFromDataFrameFactorsParallel( DataFrame in ) throws Exception {
+		return engine.mapFromDataFrame( in.values, true, RColumnConverter.DEFAULT_PARALLEL_THRESHOLD );
+	}
+}
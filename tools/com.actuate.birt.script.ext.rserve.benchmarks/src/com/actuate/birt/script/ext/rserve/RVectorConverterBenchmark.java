@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPString;
+
+/**
+ * Benchmarks of the REXP to Java conversions in RVectorConverter. Each benchmark only generates the input
+ * it converts, so that the largest sizes fit in memory.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+public class RVectorConverterBenchmark {
+
+	/**
+	 * Size and NA density of the input; each subclass generates one input
+	 */
+	@State( Scope.Benchmark )
+	public abstract static class Input {
+		@Param( { "1", "1000", "1000000", "10000000" } )
+		public int size;
+
+		@Param( { "0.0", "0.1", "0.5" } )
+		public double naDensity;
+
+		REXP rexp;
+	}
+
+	public static class Doubles extends Input {
+		@Setup
+		public void setup() {
+			rexp = new REXPDouble( BenchmarkData.doubles( size, naDensity ) );
+		}
+	}
+
+	public static class Ints extends Input {
+		@Setup
+		public void setup() {
+			rexp = new REXPInteger( BenchmarkData.ints( size, naDensity ) );
+		}
+	}
+
+	public static class Strings extends Input {
+		@Setup
+		public void setup() {
+			rexp = new REXPString( BenchmarkData.strings( size, naDensity ) );
+		}
+	}
+
+	public static class DoubleMatrix extends Input {
+		@Setup
+		public void setup() {
+			rexp = BenchmarkData.doubleMatrix( size, naDensity );
+		}
+	}
+
+	public static class IntMatrix extends Input {
+		@Setup
+		public void setup() {
+			rexp = BenchmarkData.intMatrix( size, naDensity );
+		}
+	}
+
+	@Benchmark
+	public double[] to_doubles_fromDouble( Doubles in ) throws REXPMismatchException {
+		return RVectorConverter.to_doubles( in.rexp );
+	}
+
+	@Benchmark
+	public double[] to_doubles_fromInteger( Ints in ) throws REXPMismatchException {
+		return RVectorConverter.to_doubles( in.rexp );
+	}
+
+	@Benchmark
+	public Double[] to_Doubles_fromDouble( Doubles in ) throws REXPMismatchException {
+		return RVectorConverter.to_Doubles( in.rexp );
+	}
+
+	@Benchmark
+	public Double[] to_Doubles_fromInteger( Ints in ) throws REXPMismatchException {
+		return RVectorConverter.to_Doubles( in.rexp );
+	}
+
+	@Benchmark
+	public Integer[] to_Integers_fromInteger( Ints in ) throws REXPMismatchException {
+		return RVectorConverter.to_Integers( in.rexp );
+	}
+
+	@Benchmark
+	public Integer[] to_Integers_fromDouble( Doubles in ) throws REXPMismatchException {
+		return RVectorConverter.to_Integers( in.rexp );
+	}
+
+	@Benchmark
+	public String[] to_Strings_fromString( Strings in ) throws REXPMismatchException {
+		return RVectorConverter.to_Strings( in.rexp );
+	}
+
+	@Benchmark
+	public String[] to_Strings_fromDouble( Doubles in ) throws REXPMismatchException {
+		return RVectorConverter.to_Strings( in.rexp );
+	}
+
+	@Benchmark
+	public String[] to_Strings_fromInteger( Ints in ) throws REXPMismatchException {
+		return RVectorConverter.to_Strings( in.rexp );
+	}
+
+	@Benchmark
+	public double[][] to_doubleMatrix_fromDouble( DoubleMatrix in ) throws REXPMismatchException {
+		return RVectorConverter.to_doubleMatrix( in.rexp );
+	}
+
+	@Benchmark
+	public double[][] to_doubleMatrix_fromInteger( IntMatrix in ) throws REXPMismatchException {
+		return RVectorConverter.to_doubleMatrix( in.rexp );
+	}
+
+	@Benchmark
+	public int to_doubles_fromDouble_pooled( Doubles in ) throws REXPMismatchException {
+		return RVectorConverter.to_doubles( in.rexp, RConversionBuffers.get().doubles( in.size ) );
+	}
+
+	@Benchmark
+	public int to_doubles_fromInteger_pooled( Ints in ) throws REXPMismatchException {
+		return RVectorConverter.to_doubles( in.rexp, RConversionBuffers.get().doubles( in.size ) );
+	}
+
+	@Benchmark
+	public int to_ints_fromDouble_pooled( Doubles in ) throws REXPMismatchException {
+		return RVectorConverter.to_ints( in.rexp, RConversionBuffers.get().ints( in.size ) );
+	}
+
+	@Benchmark
+	public int to_Strings_fromString_pooled( Strings in ) throws REXPMismatchException {
+		return RVectorConverter.to_Strings( in.rexp, RConversionBuffers.get().strings( in.size ) );
+	}
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+
+/**
+ * The array to REXP conversion of RScriptEngine before it was specialized by component type (see
+ * RArrayConverter), kept unchanged as the baseline of the conversion benchmarks. Elements are read with
+ * java.lang.reflect.Array, and the vector type is taken from the first non-null element; types other than
+ * Integer and Number are sent as strings.
+ */
+final class ReflectiveArrayConverter {
+
+	private ReflectiveArrayConverter() {
+	}
+
+	static REXP arrayToREXP( Object array ) {
+		// int, double and String arrays can be directly passed to REXP;
+		if ( array instanceof int[] ) {
+			return new REXPInteger( (int[]) array );
+		} else if ( array instanceof double[] ) {
+			return new REXPDouble( (double[]) array );
+		} else if ( array instanceof String[] ) {
+			return new REXPString( (String[]) array );
+		}
+
+		int len = Array.getLength( array );
+		if ( len == 0 )
+			return new REXPNull();
+
+		// Examine first element to see if it is a collection or array
+		Object first = Array.get( array, 0 );
+		if ( first != null && ( first.getClass().isArray() || first instanceof Collection ) ) {
+			// 2-D array or collection; convert to matrix
+			return toDoubleMatrix( (Object[]) array );
+		}
+
+		// Need to unbox or convert data types
+		Class<?> baseClass = array.getClass().getComponentType();
+		// if array type is Object[], we should find the first non-null value to determine the actual type
+		if ( baseClass == Object.class ) {
+			for ( int i = 0; i < len; i++ ) {
+				Object elem = Array.get( array, i );
+				if ( elem != null ) {
+					baseClass = elem.getClass();
+					break;
+				}
+			}
+		}
+
+		if ( baseClass == Integer.class ) {
+			int[] ints = new int[len];
+			for ( int i = 0; i < len; i++ ) {
+				Integer v = (Integer) Array.get( array, i );
+				// Convert null to NA
+				ints[i] = v == null ? REXPInteger.NA : v;
+			}
+			return new REXPInteger( ints );
+		} else if ( Number.class.isAssignableFrom( baseClass ) ) {
+			// All other numbers are passed as Double
+			double[] doubles = new double[len];
+			for ( int i = 0; i < len; i++ ) {
+				Number v = ( (Number) Array.get( array, i ) );
+				// Convert null to NA
+				doubles[i] = v == null ? REXPDouble.NA : v.doubleValue();
+			}
+			return new REXPDouble( doubles );
+		} else {
+			// Everything else is converted to string array
+			String[] strs = new String[len];
+			for ( int i = 0; i < len; i++ ) {
+				Object val = Array.get( array, i );
+				strs[i] = val == null ? null : val.toString();
+			}
+			return new REXPString( strs );
+		}
+	}
+
+	static REXP toDoubleMatrix( Object[] values ) {
+		if ( values instanceof double[][] ) {
+			return REXP.createDoubleMatrix( (double[][]) values );
+		}
+
+		int nrows = values.length;
+		if ( nrows == 0 )
+			return new REXPNull();
+
+		// Determine 2nd dimension length by looking at first row;
+		// First row can be a collection or an array
+		Object row0 = values[0];
+		if ( row0 == null )
+			return new REXPNull();
+
+		int ncols;
+		if ( row0 instanceof Collection ) {
+			ncols = ( (Collection<?>) row0 ).size();
+		} else {
+			// row0 must be array
+			ncols = Array.getLength( values[0] );
+		}
+
+		// Copy data to double[][] array
+		double[][] matrix = new double[nrows][ncols];
+		for ( int r = 0; r < nrows; r++ ) {
+			Object row = values[r];
+			if ( row instanceof Collection ) {
+				// Iterate through collection and convert each value to double
+				int c = 0;
+				for ( Object o : (Collection<?>) row ) {
+					matrix[r][c] = toDouble( o );
+					if ( ( ++c ) >= ncols )
+						break;
+				}
+			} else {
+				// Row is array
+				for ( int c = 0; c < ncols; c++ ) {
+					matrix[r][c] = toDouble( Array.get( row, c ) );
+				}
+			}
+		}
+
+		return REXP.createDoubleMatrix( matrix );
+	}
+
+	private static double toDouble( Object value ) {
+		if ( value == null )
+			return REXPDouble.NA;
+		if ( value instanceof Number )
+			return ( (Number) value ).doubleValue();
+		return Double.parseDouble( value.toString() );
+	}
+}
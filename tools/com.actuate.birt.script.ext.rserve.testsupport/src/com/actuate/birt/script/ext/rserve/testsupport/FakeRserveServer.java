@@ -0,0 +1,624 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve.testsupport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPInteger;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPNull;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.Rserve.protocol.REXPFactory;
+
+/**
+ * An embeddable stand-in for Rserve, which speaks enough of the QAP1 protocol for RConnection to log in,
+ * evaluate scripts and assign variables. It does not run R: the result of an evaluation is produced by the
+ * first rule whose pattern matches the whole script, or by the default responder, which returns NULL.
+ * Assigned variables are kept in a per-connection workspace, and evaluating a variable name returns its value.
+ * The server also answers the few scripts sent by RserveConnectionFactory itself (Sys.getpid(),
+ * geterrmessage() and tools::pskill(), which closes the connection of the killed process).
+ * <p>
+ * Latency (added to every request), bandwidth (applied to request and response payloads) and the number of
+ * connections and concurrently served requests can be set to mimic a remote or busy server. Each connection
+ * is served by its own thread, as Rserve serves each connection by its own process.
+ */
+public class FakeRserveServer implements AutoCloseable {
+	private static Logger logger = Logger.getLogger( FakeRserveServer.class.getName() );
+
+	/** Error code returned by Rserve when an R expression fails */
+	public static final int ERR_R = 127;
+	public static final int ERR_AUTH_FAILED = 0x41;
+	public static final int ERR_INV_CMD = 0x43;
+	public static final int ERR_INV_PAR = 0x44;
+
+	private static final int CMD_LOGIN = 0x001;
+	private static final int CMD_VOID_EVAL = 0x002;
+	private static final int CMD_EVAL = 0x003;
+	private static final int CMD_SHUTDOWN = 0x004;
+	private static final int CMD_SET_SEXP = 0x020;
+	private static final int CMD_ASSIGN_SEXP = 0x021;
+
+	private static final int RESP_OK = 0x10001;
+	private static final int RESP_ERR = 0x10002;
+
+	private static final int DT_STRING = 4;
+	private static final int DT_SEXP = 10;
+	private static final int DT_LARGE = 64;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+	private static final Pattern PID_PATTERN = Pattern.compile( "(?s).*\\bSys\\.getpid\\(\\)\\s*" );
+	private static final Pattern KILL_PATTERN = Pattern.compile( "tools::pskill\\((\\d+)L?,.*\\)" );
+	private static final Pattern NAME_PATTERN = Pattern.compile( "[A-Za-z.][A-Za-z0-9._]*" );
+
+	/**
+	 * Produces the result of an evaluation
+	 */
+	public interface Responder {
+		/**
+		 * @return Result of the evaluation; null for NULL
+		 * @throws EvalError to make the evaluation fail
+		 */
+		REXP respond( Request request ) throws EvalError;
+	}
+
+	private static final Responder NULL_RESPONDER = new Responder() {
+		@Override
+		public REXP respond( Request request ) {
+			return null;
+		}
+	};
+
+	private final ServerSocket serverSocket;
+	private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+	private final Set<Connection> connections = Collections.newSetFromMap( new ConcurrentHashMap<Connection, Boolean>() );
+	private final AtomicInteger nextPid = new AtomicInteger( 10000 );
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private volatile Responder defaultResponder = NULL_RESPONDER;
+	private volatile long latency;
+	private volatile long bandwidth;
+	private volatile int maxConnections;
+	private volatile Semaphore requestPermits;
+	private volatile String user;
+	private volatile String password;
+	private Thread acceptor;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a server listening on an ephemeral port of the loopback interface
+	 */
+	public FakeRserveServer() throws IOException {
+		this( 0 );
+	}
+
+	/**
+	 * Creates a server listening on a port of the loopback interface
+	 * @param port Port number; 0 for an ephemeral port
+	 */
+	public FakeRserveServer( int port ) throws IOException {
+		serverSocket = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts accepting connections
+	 * @return this server
+	 */
+	public synchronized FakeRserveServer start() {
+		if ( acceptor == null ) {
+			acceptor = new Thread( new Runnable() {
+				@Override
+				public void run() {
+					accept();
+				}
+			}, "Fake Rserve on port " + getPort() );
+			acceptor.setDaemon( true );
+			acceptor.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a rule that returns a fixed result
+	 * @param regex Regular expression that must match the whole script (after trailing white space is removed)
+	 * @return this server
+	 */
+	public FakeRserveServer on( String regex, REXP result ) {
+		final REXP value = result;
+		return on( regex, new Responder() {
+			@Override
+			public REXP respond( Request request ) {
+				return value;
+			}
+		} );
+	}
+
+	/**
+	 * Adds a rule that computes the result of an evaluation. Rules are tried in the order they were added.
+	 * @param regex Regular expression that must match the whole script (after trailing white space is removed)
+	 * @return this server
+	 */
+	public FakeRserveServer on( String regex, Responder responder ) {
+		rules.add( new Rule( Pattern.compile( regex, Pattern.DOTALL ), responder ) );
+		return this;
+	}
+
+	/**
+	 * Adds a rule that makes matching evaluations fail with an R error
+	 * @return this server
+	 */
+	public FakeRserveServer onError( String regex, final String message ) {
+		return on( regex, new Responder() {
+			@Override
+			public REXP respond( Request request ) throws EvalError {
+				throw new EvalError( message );
+			}
+		} );
+	}
+
+	/**
+	 * Sets the responder of evaluations that match no rule
+	 */
+	public void setDefaultResponder( Responder responder ) {
+		this.defaultResponder = responder == null ? NULL_RESPONDER : responder;
+	}
+
+	/**
+	 * Sets a delay added to every request, e.g. to mimic network round trips
+	 * @param millis Delay in milliseconds
+	 */
+	public void setLatency( long millis ) {
+		this.latency = millis;
+	}
+
+	/**
+	 * Limits the rate at which request and response payloads are transferred
+	 * @param bytesPerSecond Transfer rate; 0 for unlimited
+	 */
+	public void setBandwidth( long bytesPerSecond ) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Limits the number of open connections; further connections are refused
+	 * @param max Maximum number of connections; 0 for unlimited
+	 */
+	public void setMaxConnections( int max ) {
+		this.maxConnections = max;
+	}
+
+	/**
+	 * Limits the number of requests that are served at the same time, e.g. to mimic a server with few cores;
+	 * further requests wait for a running request to complete
+	 * @param max Maximum number of concurrent requests; 0 for unlimited
+	 */
+	public void setMaxConcurrentRequests( int max ) {
+		this.requestPermits = max > 0 ? new Semaphore( max, true ) : null;
+	}
+
+	/**
+	 * Requires clients to log in with the specified credentials
+	 */
+	public void setCredentials( String user, String password ) {
+		this.user = user;
+		this.password = password;
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Stops the server and closes all connections
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch ( IOException e ) {
+			// Ignore
+		}
+		for ( Connection connection : connections )
+			connection.close();
+	}
+
+	private void accept() {
+		while ( !closed ) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch ( IOException e ) {
+				if ( !closed )
+					logger.log( Level.WARNING, "Failed to accept connection", e );
+				return;
+			}
+			int max = maxConnections;
+			if ( max > 0 && connections.size() >= max ) {
+				logger.fine( "Refusing connection; limit of " + max + " connections reached" );
+				try {
+					socket.close();
+				} catch ( IOException e ) {
+					// Ignore
+				}
+				continue;
+			}
+			Connection connection = new Connection( socket, nextPid.getAndIncrement() );
+			connections.add( connection );
+			Thread t = new Thread( connection, "Fake Rserve connection " + connection.pid );
+			t.setDaemon( true );
+			t.start();
+		}
+	}
+
+	/**
+	 * Waits for the time it takes to transfer a payload at the configured bandwidth
+	 */
+	private void throttle( long bytes ) throws InterruptedException {
+		long bps = bandwidth;
+		if ( bps > 0 && bytes > 0 )
+			TimeUnit.NANOSECONDS.sleep( bytes * 1000000000L / bps );
+	}
+
+	/**
+	 * An evaluation request
+	 */
+	public static class Request {
+		private final String script;
+		private final boolean voidEval;
+		private final int pid;
+		private final Map<String, REXP> workspace;
+		private final Matcher matcher;
+
+		Request( String script, boolean voidEval, int pid, Map<String, REXP> workspace, Matcher matcher ) {
+			this.script = script;
+			this.voidEval = voidEval;
+			this.pid = pid;
+			this.workspace = workspace;
+			this.matcher = matcher;
+		}
+
+		public String getScript() {
+			return script;
+		}
+
+		/**
+		 * Whether the result is discarded (voidEval)
+		 */
+		public boolean isVoidEval() {
+			return voidEval;
+		}
+
+		/**
+		 * Gets the fake process ID of the connection, as returned by Sys.getpid()
+		 */
+		public int getPid() {
+			return pid;
+		}
+
+		/**
+		 * Gets the variables assigned on the connection. Responders may add or remove variables.
+		 */
+		public Map<String, REXP> getWorkspace() {
+			return workspace;
+		}
+
+		/**
+		 * Gets a capturing group of the rule pattern that matched the script
+		 */
+		public String group( int group ) {
+			return matcher == null ? null : matcher.group( group );
+		}
+	}
+
+	/**
+	 * Thrown by a responder to make an evaluation fail
+	 */
+	public static class EvalError extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final int code;
+
+		/**
+		 * Creates an R error; RConnection reports it with code 127, and the message is returned by
+		 * geterrmessage()
+		 */
+		public EvalError( String message ) {
+			this( ERR_R, message );
+		}
+
+		public EvalError( int code, String message ) {
+			super( message );
+			this.code = code;
+		}
+
+		public int getCode() {
+			return code;
+		}
+	}
+
+	private static class Rule {
+		final Pattern pattern;
+		final Responder responder;
+
+		Rule( Pattern pattern, Responder responder ) {
+			this.pattern = pattern;
+			this.responder = responder;
+		}
+	}
+
+	/**
+	 * Serves one client connection
+	 */
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final int pid;
+		private final Map<String, REXP> workspace = new HashMap<String, REXP>();
+		private String lastError = "";
+		private boolean authenticated;
+
+		Connection( Socket socket, int pid ) {
+			this.socket = socket;
+			this.pid = pid;
+		}
+
+		@Override
+		public void run() {
+			try {
+				socket.setTcpNoDelay( true );
+				DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+				OutputStream out = new BufferedOutputStream( socket.getOutputStream() );
+				boolean needLogin = user != null;
+				authenticated = !needLogin;
+				out.write( ( "Rsrv0103QAP1\r\n\r\n" + ( needLogin ? "ARpt" : "----" ) + "----------\r\n" )
+						.getBytes( UTF8 ) );
+				out.flush();
+
+				byte[] header = new byte[16];
+				while ( true ) {
+					try {
+						in.readFully( header );
+					} catch ( EOFException e ) {
+						return;
+					}
+					int cmd = getInt( header, 0 );
+					long length = ( getInt( header, 4 ) & 0xffffffffL ) | ( (long) getInt( header, 12 ) << 32 );
+					if ( length > Integer.MAX_VALUE - 8 ) {
+						logger.warning( "Request of " + length + " bytes is too large" );
+						return;
+					}
+					byte[] payload = new byte[(int) length];
+					in.readFully( payload );
+					bytesReceived.addAndGet( header.length + length );
+					requestCount.incrementAndGet();
+					throttle( length );
+
+					Semaphore permits = requestPermits;
+					if ( permits != null )
+						permits.acquire();
+					byte[] response;
+					try {
+						if ( latency > 0 )
+							Thread.sleep( latency );
+						response = handle( cmd, payload );
+					} finally {
+						if ( permits != null )
+							permits.release();
+					}
+
+					throttle( response.length - 16 );
+					out.write( response );
+					out.flush();
+					bytesSent.addAndGet( response.length );
+					if ( cmd == CMD_SHUTDOWN )
+						return;
+				}
+			} catch ( SocketException e ) {
+				// Connection closed by the client, or by close()
+			} catch ( IOException e ) {
+				logger.log( Level.WARNING, "Fake Rserve connection " + pid + " failed", e );
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			} finally {
+				close();
+			}
+		}
+
+		void close() {
+			connections.remove( this );
+			try {
+				socket.close();
+			} catch ( IOException e ) {
+				// Ignore
+			}
+		}
+
+		private byte[] handle( int cmd, byte[] payload ) {
+			if ( !authenticated && cmd != CMD_LOGIN )
+				return error( ERR_AUTH_FAILED );
+			try {
+				switch ( cmd ) {
+				case CMD_LOGIN: {
+					String[] credentials = getString( payload, 0 ).split( "\n", 2 );
+					authenticated = credentials.length == 2 && credentials[0].equals( user )
+							&& credentials[1].equals( password );
+					return authenticated ? ok( null ) : error( ERR_AUTH_FAILED );
+				}
+				case CMD_VOID_EVAL:
+				case CMD_EVAL: {
+					REXP result = evaluate( getString( payload, 0 ).trim(), cmd == CMD_VOID_EVAL );
+					return ok( cmd == CMD_EVAL ? result : null );
+				}
+				case CMD_SET_SEXP:
+				case CMD_ASSIGN_SEXP: {
+					String name = getString( payload, 0 );
+					int offset = getHeaderLength( payload, 0 ) + getLength( payload, 0 );
+					if ( ( payload[offset] & 0x3f ) != DT_SEXP )
+						return error( ERR_INV_PAR );
+					REXPFactory factory = new REXPFactory();
+					factory.parseREXP( payload, offset + getHeaderLength( payload, offset ) );
+					workspace.put( name, factory.getREXP() );
+					return ok( null );
+				}
+				case CMD_SHUTDOWN:
+					return ok( null );
+				default:
+					return error( ERR_INV_CMD );
+				}
+			} catch ( EvalError e ) {
+				if ( e.getCode() == ERR_R )
+					lastError = "Error: " + e.getMessage() + "\n";
+				return error( e.getCode() );
+			} catch ( REXPMismatchException | RuntimeException e ) {
+				logger.log( Level.WARNING, "Failed to handle command " + cmd, e );
+				return error( ERR_INV_PAR );
+			}
+		}
+
+		private REXP evaluate( String script, boolean voidEval ) throws EvalError {
+			for ( Rule rule : rules ) {
+				Matcher m = rule.pattern.matcher( script );
+				if ( m.matches() )
+					return rule.responder.respond( new Request( script, voidEval, pid, workspace, m ) );
+			}
+
+			// Scripts sent by the connection factory and the engine
+			if ( script.equals( "geterrmessage()" ) )
+				return new REXPString( lastError );
+			if ( PID_PATTERN.matcher( script ).matches() )
+				return new REXPInteger( pid );
+			Matcher kill = KILL_PATTERN.matcher( script );
+			if ( kill.matches() ) {
+				int target = Integer.parseInt( kill.group( 1 ) );
+				boolean killed = false;
+				for ( Connection connection : connections ) {
+					if ( connection.pid == target ) {
+						connection.close();
+						killed = true;
+					}
+				}
+				return new REXPLogical( killed );
+			}
+			if ( NAME_PATTERN.matcher( script ).matches() && workspace.containsKey( script ) )
+				return workspace.get( script );
+
+			return defaultResponder.respond( new Request( script, voidEval, pid, workspace, null ) );
+		}
+
+		private byte[] ok( REXP result ) throws REXPMismatchException {
+			if ( result == null )
+				result = new REXPNull();
+			REXPFactory factory = new REXPFactory( result );
+			int length = factory.getBinaryLength();
+			int headerLength = length > 0xfffff0 ? 8 : 4;
+			byte[] response = new byte[16 + headerLength + length];
+			setInt( response, 0, RESP_OK );
+			setInt( response, 4, headerLength + length );
+			response[16] = (byte) ( DT_SEXP | ( headerLength == 8 ? DT_LARGE : 0 ) );
+			response[17] = (byte) length;
+			response[18] = (byte) ( length >> 8 );
+			response[19] = (byte) ( length >> 16 );
+			if ( headerLength == 8 )
+				response[20] = (byte) ( length >> 24 );
+			factory.getBinaryRepresentation( response, 16 + headerLength );
+			return response;
+		}
+
+		private byte[] error( int code ) {
+			byte[] response = new byte[16];
+			setInt( response, 0, RESP_ERR | ( ( code & 0x7f ) << 24 ) );
+			return response;
+		}
+	}
+
+	/**
+	 * Reads a DT_STRING parameter
+	 */
+	private static String getString( byte[] payload, int offset ) {
+		if ( payload.length < offset + 4 || ( payload[offset] & 0x3f ) != DT_STRING )
+			throw new IllegalArgumentException( "String parameter expected" );
+		int start = offset + getHeaderLength( payload, offset );
+		int end = start;
+		int limit = Math.min( payload.length, start + getLength( payload, offset ) );
+		while ( end < limit && payload[end] != 0 )
+			end++;
+		return new String( payload, start, end - start, UTF8 );
+	}
+
+	/**
+	 * Gets the length of the header of a parameter; parameters of more than 0xfffff0 bytes have a long header
+	 */
+	private static int getHeaderLength( byte[] payload, int offset ) {
+		return ( payload[offset] & DT_LARGE ) != 0 ? 8 : 4;
+	}
+
+	/**
+	 * Gets the length of the data of a parameter, excluding its header
+	 */
+	private static int getLength( byte[] payload, int offset ) {
+		int length = ( payload[offset + 1] & 0xff ) | ( payload[offset + 2] & 0xff ) << 8
+				| ( payload[offset + 3] & 0xff ) << 16;
+		if ( getHeaderLength( payload, offset ) == 8 )
+			length |= ( payload[offset + 4] & 0xff ) << 24;
+		return length;
+	}
+
+	private static int getInt( byte[] buf, int offset ) {
+		return ( buf[offset] & 0xff ) | ( buf[offset + 1] & 0xff ) << 8 | ( buf[offset + 2] & 0xff ) << 16
+				| ( buf[offset + 3] & 0xff ) << 24;
+	}
+
+	private static void setInt( byte[] buf, int offset, int value ) {
+		buf[offset] = (byte) value;
+		buf[offset + 1] = (byte) ( value >> 8 );
+		buf[offset + 2] = (byte) ( value >> 16 );
+		buf[offset + 3] = (byte) ( value >> 24 );
+	}
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Actuate. All Rights Reserved.
+ * Trademarks owned by Actuate.
+ * "OpenText" is a trademark of Open Text.
+ *******************************************************************************/
+
+package com.actuate.birt.script.ext.rserve.testsupport;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPMismatchException;
+
+import com.actuate.birt.script.ext.rserve.LatencyHistogram;
+import com.actuate.birt.script.ext.rserve.RScriptEngine;
+import com.actuate.birt.script.ext.rserve.RScriptEngineFactory;
+import com.actuate.birt.script.ext.rserve.RserveConnectionFactory;
+
+/**
+ * Drives concurrent script engines through the connect / assign / eval cycle of a report data set, and reports
+ * the throughput and the latency percentiles of each step. By default the engines run against an embedded
+ * FakeRserveServer, so that the connection pool, the engine and the conversion code can be load-tested without
+ * R; -host and -port run the same load against a real Rserve instead.
+ * <p>
+ * Each iteration gets the engine of its thread, obtains a connection from RserveConnectionFactory, assigns
+ * a numeric vector of -rows values to x, evaluates mean(x), and closes the connection. Options:
+ * <pre>
+ * -threads n        Number of concurrent engines (default 8)
+ * -iterations n     Measured iterations per engine (default 1000)
+ * -warmup n         Unmeasured iterations per engine, run first (default 100)
+ * -rows n           Length of the assigned vector (default 1000)
+ * -latency ms       Fake server: delay added to every request (default 0)
+ * -bandwidth n      Fake server: transfer rate in bytes per second; 0 for unlimited (default 0)
+ * -maxConcurrent n  Fake server: number of requests served at the same time; 0 for unlimited (default 0)
+ * -host h -port p   Run against a real Rserve instead of the fake server
+ * </pre>
+ */
+public class LoadHarness {
+	private int threads = 8;
+	private int iterations = 1000;
+	private int warmup = 100;
+	private int rows = 1000;
+	private long latency;
+	private long bandwidth;
+	private int maxConcurrent;
+	private String host;
+	private int port;
+
+	private final LatencyHistogram connectTimes = new LatencyHistogram();
+	private final LatencyHistogram assignTimes = new LatencyHistogram();
+	private final LatencyHistogram evalTimes = new LatencyHistogram();
+	private final LatencyHistogram iterationTimes = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+
+	public static void main( String[] args ) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		try {
+			harness.parse( args );
+		} catch ( IllegalArgumentException e ) {
+			System.err.println( e.getMessage() );
+			System.err.println( "Usage: LoadHarness [-threads n] [-iterations n] [-warmup n] [-rows n] "
+					+ "[-latency ms] [-bandwidth bytesPerSecond] [-maxConcurrent n] [-host h -port p]" );
+			System.exit( 1 );
+		}
+		harness.run();
+	}
+
+	private void parse( String[] args ) {
+		for ( int i = 0; i < args.length; i++ ) {
+			String name = args[i];
+			if ( i + 1 >= args.length )
+				throw new IllegalArgumentException( "Missing value of " + name );
+			String value = args[++i];
+			try {
+				if ( name.equals( "-threads" ) )
+					threads = Integer.parseInt( value );
+				else if ( name.equals( "-iterations" ) )
+					iterations = Integer.parseInt( value );
+				else if ( name.equals( "-warmup" ) )
+					warmup = Integer.parseInt( value );
+				else if ( name.equals( "-rows" ) )
+					rows = Integer.parseInt( value );
+				else if ( name.equals( "-latency" ) )
+					latency = Long.parseLong( value );
+				else if ( name.equals( "-bandwidth" ) )
+					bandwidth = Long.parseLong( value );
+				else if ( name.equals( "-maxConcurrent" ) )
+					maxConcurrent = Integer.parseInt( value );
+				else if ( name.equals( "-host" ) )
+					host = value;
+				else if ( name.equals( "-port" ) )
+					port = Integer.parseInt( value );
+				else
+					throw new IllegalArgumentException( "Unknown option " + name );
+			} catch ( NumberFormatException e ) {
+				throw new IllegalArgumentException( "Invalid value of " + name + ": " + value );
+			}
+		}
+	}
+
+	/**
+	 * Creates the fake server, with a rule that computes mean(x) from the assigned vector
+	 */
+	static FakeRserveServer createServer() throws IOException {
+		FakeRserveServer server = new FakeRserveServer();
+		server.on( "mean\\((\\w+)\\)", new FakeRserveServer.Responder() {
+			@Override
+			public REXP respond( FakeRserveServer.Request request ) throws FakeRserveServer.EvalError {
+				REXP x = request.getWorkspace().get( request.group( 1 ) );
+				if ( x == null )
+					throw new FakeRserveServer.EvalError( "object '" + request.group( 1 ) + "' not found" );
+				try {
+					double[] values = x.asDoubles();
+					double sum = 0;
+					for ( double v : values )
+						sum += v;
+					return new REXPDouble( values.length == 0 ? Double.NaN : sum / values.length );
+				} catch ( REXPMismatchException e ) {
+					throw new FakeRserveServer.EvalError( "argument is not numeric or logical" );
+				}
+			}
+		} );
+		return server;
+	}
+
+	public void run() throws Exception {
+		FakeRserveServer server = null;
+		if ( host == null ) {
+			server = createServer();
+			server.setLatency( latency );
+			server.setBandwidth( bandwidth );
+			server.setMaxConcurrentRequests( maxConcurrent );
+			server.start();
+			host = "127.0.0.1";
+			port = server.getPort();
+		}
+		try {
+			final Map<String, Object> props = new HashMap<String, Object>();
+			props.put( RserveConnectionFactory.PROP_HOST, host );
+			props.put( RserveConnectionFactory.PROP_PORT, Integer.toString( port ) );
+
+			final CountDownLatch startSignal = new CountDownLatch( 1 );
+			final CountDownLatch warmedUp = new CountDownLatch( threads );
+			final CountDownLatch done = new CountDownLatch( threads );
+			final RScriptEngineFactory engineFactory = new RScriptEngineFactory();
+			for ( int t = 0; t < threads; t++ ) {
+				final double[] data = data( rows, t );
+				Thread thread = new Thread( new Runnable() {
+					@Override
+					public void run() {
+						try {
+							RserveConnectionFactory factory = new RserveConnectionFactory();
+							for ( int i = 0; i < warmup; i++ )
+								iterate( engineFactory, factory, props, data, false );
+							warmedUp.countDown();
+							startSignal.await();
+							for ( int i = 0; i < iterations; i++ )
+								iterate( engineFactory, factory, props, data, true );
+						} catch ( InterruptedException e ) {
+							Thread.currentThread().interrupt();
+						} finally {
+							done.countDown();
+						}
+					}
+				}, "Load " + t );
+				thread.setDaemon( true );
+				thread.start();
+			}
+
+			warmedUp.await();
+			long start = System.nanoTime();
+			startSignal.countDown();
+			done.await();
+			long elapsed = System.nanoTime() - start;
+
+			report( elapsed, server );
+		} finally {
+			if ( server != null )
+				server.close();
+		}
+	}
+
+	private void iterate( RScriptEngineFactory engineFactory, RserveConnectionFactory factory,
+			Map<String, Object> props, double[] data, boolean measured ) {
+		// Like a host that asks for an engine per data set, reusing the engine of the thread
+		RScriptEngine engine = engineFactory.getThreadEngine();
+		long t0 = System.nanoTime();
+		try ( AutoCloseable conn = factory.getConnection( props ) ) {
+			long t1 = System.nanoTime();
+			engine.put( RScriptEngine.ATTR_R_CONNECTION, conn );
+			engine.put( "x", data );
+			long t2 = System.nanoTime();
+			engine.eval( "mean(x)" );
+			long t3 = System.nanoTime();
+			if ( measured ) {
+				connectTimes.record( t1 - t0 );
+				assignTimes.record( t2 - t1 );
+				evalTimes.record( t3 - t2 );
+			}
+		} catch ( Exception e ) {
+			if ( measured && errors.incrementAndGet() == 1 )
+				e.printStackTrace();
+			return;
+		}
+		if ( measured )
+			iterationTimes.record( System.nanoTime() - t0 );
+	}
+
+	private void report( long elapsedNanos, FakeRserveServer server ) {
+		double seconds = elapsedNanos / 1e9;
+		System.out.println( String.format( "%d threads x %d iterations, %d rows, against %s:%d%s", threads,
+				iterations, rows, host, port, server == null ? ""
+						: String.format( " (fake; latency=%dms bandwidth=%s maxConcurrent=%s)", latency,
+								bandwidth == 0 ? "unlimited" : bandwidth + "B/s",
+								maxConcurrent == 0 ? "unlimited" : Integer.toString( maxConcurrent ) ) ) );
+		System.out.println( String.format( "elapsed=%.3fs throughput=%.1f iterations/s errors=%d", seconds,
+				iterationTimes.getCount() / seconds, errors.get() ) );
+		System.out.println( "connect:   " + connectTimes.snapshot() );
+		System.out.println( "assign:    " + assignTimes.snapshot() );
+		System.out.println( "eval:      " + evalTimes.snapshot() );
+		System.out.println( "iteration: " + iterationTimes.snapshot() );
+		if ( server != null )
+			System.out.println( String.format( "server: requests=%d received=%dB sent=%dB",
+					server.getRequestCount(), server.getBytesReceived(), server.getBytesSent() ) );
+	}
+
+	private static double[] data( int rows, int seed ) {
+		Random r = new Random( seed );
+		double[] data = new double[rows];
+		for ( int i = 0; i < rows; i++ )
+			data[i] = r.nextGaussian();
+		return data;
+	}
+}